@@ -0,0 +1,214 @@
+import java.io.*;
+
+/**
+ *  A block-at-a-time evaluator for flat queries:  a BM25 #SUM or an
+ *  Indri #AND whose arguments are all #SCORE operators over inverted
+ *  lists, with any number of arguments.  The docid space is processed
+ *  in windows of WINDOW_SIZE documents.  Within a window, each
+ *  argument's postings are read BLOCK_SIZE at a time into arrays, their
+ *  field lengths are fetched together, and the block is scored in one
+ *  loop (see QrySopScore.getScores) and added to the window's
+ *  accumulators.
+ *  <p>
+ *  Scores are exactly the same as DAAT scores (see QryScorer).  A
+ *  document's accumulator only lives for its window, but the arguments
+ *  are still added to it in argument order.  Unlike TAAT, the
+ *  accumulators cover one window rather than the whole index, so they
+ *  stay in cache however large the index and the candidate set are.
+ *  </p>
+ */
+public class BlockEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of postings that are scored together.
+   */
+  private static final int BLOCK_SIZE = 128;
+
+  /**
+   *  The number of docids in a window.  Must be a multiple of 64.
+   */
+  private static final int WINDOW_SIZE = 4096;
+
+  /**
+   *  Whether supported queries are evaluated a block at a time.
+   */
+  private static boolean enabled = false;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Set whether supported queries are evaluated a block at a time.
+   *  @param e True to use block-at-a-time evaluation.
+   */
+  public static void setEnabled (boolean e) {
+    BlockEvaluator.enabled = e;
+  }
+
+  /**
+   *  Indicates whether a query has a shape that block-at-a-time
+   *  evaluation supports.  Unlike TAAT, whose accumulators cover the
+   *  whole index, the cost of a window doesn't grow with the number of
+   *  arguments, so wide queries are supported too.
+   *  @param q An initialized query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated a block at a time.
+   */
+  public static boolean supports (Qry q, RetrievalModel r) {
+
+    if (! (((q instanceof QrySopSum) && (r instanceof RetrievalModelBM25)) ||
+           ((q instanceof QrySopAnd) && (r instanceof RetrievalModelIndri)))) {
+      return false;
+    }
+
+    if (q.args.size () == 0) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Decide whether to evaluate a query a block at a time.
+   *  @param q An initialized query.
+   *  @param r The retrieval model.
+   *  @return True if block-at-a-time evaluation is enabled and
+   *    supports the query.
+   */
+  public static boolean useBlocks (Qry q, RetrievalModel r) {
+    return BlockEvaluator.enabled && supports (q, r);
+  }
+
+  /**
+   *  Evaluate a supported query a block at a time.
+   *  @param q An initialized query (see supports).  Its iterators are
+   *    consumed.
+   *  @param r The retrieval model.
+   *  @param result The list that the matching documents are added to,
+   *    in docid order.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel r, ScoreList result)
+    throws IOException {
+
+    boolean and = (q instanceof QrySopAnd);
+    int n = q.args.size ();
+    double a = 1.0 / n;
+
+    QrySopScore[] args = new QrySopScore[n];
+    QryIop[] lists = new QryIop[n];
+
+    for (int i = 0; i < n; i++) {
+      args[i] = (QrySopScore) q.args.get (i);
+      lists[i] = args[i].getArg (0);
+    }
+
+    double[] scores = new double[WINDOW_SIZE];
+    long[] seen = new long[WINDOW_SIZE >>> 6];
+    long[] matched = new long[WINDOW_SIZE >>> 6];
+
+    int[] docids = new int[BLOCK_SIZE];
+    int[] tfs = new int[BLOCK_SIZE];
+    int[] lengths = new int[BLOCK_SIZE];
+    double[] blockScores = new double[BLOCK_SIZE];
+
+    while (true) {
+
+      //  The next window starts at the smallest docid of any list.
+
+      int lo = Qry.NO_MORE_DOCS;
+
+      for (QryIop list : lists) {
+        if (list.docIteratorHasMatch (r)) {
+          lo = Math.min (lo, list.docIteratorGetMatch ());
+        }
+      }
+
+      if (lo == Qry.NO_MORE_DOCS) {
+        break;
+      }
+
+      int hi = (int) Math.min ((long) lo + WINDOW_SIZE, Integer.MAX_VALUE);
+
+      for (int i = 0; i < n; i++) {
+        QrySopScore q_i = args[i];
+        int k;
+
+        while ((k = lists[i].docIteratorNextBlock (hi, docids, tfs)) > 0) {
+          q_i.getScores (r, docids, tfs, k, lengths, blockScores);
+
+          for (int j = 0; j < k; j++) {
+            int d = docids[j] - lo;
+            int w = d >>> 6;
+            long bit = 1L << d;
+
+            if (and) {
+
+              //  A document that is new to the query starts with the
+              //  default scores of the arguments before this one.
+
+              if ((seen[w] & bit) == 0) {
+                double s = 0.0;
+
+                for (int p = 0; p < i; p++) {
+                  s += a * args[p].getLogDefaultScore (r, docids[j]);
+                }
+
+                scores[d] = s;
+              }
+
+              scores[d] += a * Math.log (blockScores[j]);
+              matched[w] |= bit;
+            } else {
+              scores[d] += blockScores[j];
+            }
+
+            seen[w] |= bit;
+          }
+        }
+
+        //  Documents that were seen but not matched by this argument
+        //  get its default score.
+
+        if (and) {
+          for (int w = 0; w < matched.length; w++) {
+            long unmatched = seen[w] & ~matched[w];
+
+            while (unmatched != 0) {
+              int d = (w << 6) + Long.numberOfTrailingZeros (unmatched);
+              scores[d] += a * q_i.getLogDefaultScore (r, lo + d);
+              unmatched &= unmatched - 1;
+            }
+
+            matched[w] = 0;
+          }
+        }
+      }
+
+      //  Report the window's documents in docid order, and reset the
+      //  accumulators.
+
+      for (int w = 0; w < seen.length; w++) {
+        long bits = seen[w];
+
+        while (bits != 0) {
+          int d = (w << 6) + Long.numberOfTrailingZeros (bits);
+          double score = and ? Math.exp (scores[d]) : scores[d];
+
+          result.add (lo + d, score);
+          scores[d] = 0;
+          bits &= bits - 1;
+        }
+
+        seen[w] = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,344 @@
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  Block-max score bounds for BM25, stored in a sidecar file next to
+ *  the Lucene index.  Each inverted list is divided into blocks of a
+ *  fixed number of postings.  For each block the sidecar records the
+ *  last docid in the block and the largest BM25 term score of any
+ *  posting in the block, so that query evaluation can skip whole
+ *  blocks that can't contribute enough to enter the result list.
+ *  <p>
+ *  Run the class to build a sidecar; run it with no arguments to see a
+ *  usage message.  The bounds depend on k_1 and b, so a sidecar can
+ *  only be used with the BM25 parameters that it was built with.  Only
+ *  lists that span more than one block are stored.
+ *  </p>
+ */
+public class BlockMaxIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x424d5831;		// "BMX1"
+
+  private static final int DEFAULT_BLOCK_SIZE = 128;
+
+  private static final String[] DEFAULT_FIELDS =
+    {"body", "title", "url", "inlink", "keywords"};
+
+  static String usage =
+    "Usage:  java BlockMaxIndex -index INDEX_PATH -output SIDECAR_PATH\n" +
+    "         -k1 K_1 -b B [-blockSize N] [-fields FIELD,FIELD,...]\n";
+
+  private double k1;
+  private double b;
+  private int blockSize;
+  private long numDocs;
+  private HashMap<String,Blocks> lists = new HashMap<String,Blocks> ();
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The block bounds of one inverted list.  Block k holds the postings
+   *  with docids in (lastDocids[k-1], lastDocids[k]].
+   */
+  public static class Blocks {
+
+    /**
+     *  The document frequency of the list when the sidecar was built.
+     */
+    public final int df;
+
+    /**
+     *  The last docid of each block, in ascending order.
+     */
+    public final int[] lastDocids;
+
+    /**
+     *  The largest BM25 term score of each block, rounded up.
+     */
+    public final float[] maxScores;
+
+    private Blocks (int df, int[] lastDocids, float[] maxScores) {
+      this.df = df;
+      this.lastDocids = lastDocids;
+      this.maxScores = maxScores;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  private BlockMaxIndex () {
+  }
+
+  /**
+   *  Get the block bounds of an inverted list.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @param field The field that the term occurs in.
+   *  @return The block bounds, or null if the sidecar doesn't store them.
+   */
+  public Blocks getBlocks (String term, String field) {
+    return this.lists.get (term + "." + field);
+  }
+
+  /**
+   *  Whether the sidecar was built for the specified BM25 parameters
+   *  and index.
+   *  @param k1 The BM25 k_1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @param index The index.
+   *  @return True if the sidecar's bounds are valid.
+   */
+  public boolean isValidFor (double k1, double b, IndexContext index) {
+    return ((this.k1 == k1) && (this.b == b) &&
+            (this.numDocs == index.getNumDocs ()));
+  }
+
+  /**
+   *  Read a sidecar file.
+   *  @param path The sidecar file.
+   *  @return The block bounds.
+   *  @throws IOException Error reading the file.
+   */
+  public static BlockMaxIndex open (String path) throws IOException {
+
+    BlockMaxIndex index = new BlockMaxIndex ();
+    DataInputStream in = new DataInputStream (
+      new BufferedInputStream (new FileInputStream (path)));
+
+    try {
+      if (in.readInt () != MAGIC) {
+        throw new IOException (path + " is not a block-max sidecar file.");
+      }
+
+      index.k1 = in.readDouble ();
+      index.b = in.readDouble ();
+      index.blockSize = in.readInt ();
+      index.numDocs = in.readLong ();
+
+      int numLists = in.readInt ();
+
+      for (int i = 0; i < numLists; i++) {
+        String field = in.readUTF ();
+        String term = in.readUTF ();
+        int df = in.readInt ();
+        int numBlocks = in.readInt ();
+        int[] lastDocids = new int[numBlocks];
+        float[] maxScores = new float[numBlocks];
+
+        for (int k = 0; k < numBlocks; k++) {
+          lastDocids[k] = in.readInt ();
+          maxScores[k] = in.readFloat ();
+        }
+
+        index.lists.put (term + "." + field,
+                         new Blocks (df, lastDocids, maxScores));
+      }
+    } finally {
+      in.close ();
+    }
+
+    return index;
+  }
+
+  /**
+   *  Write a sidecar file for the current index.
+   *  @param path The sidecar file.
+   *  @param fields The fields to process.
+   *  @param k1 The BM25 k_1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @param blockSize The number of postings per block.
+   *  @throws IOException Error accessing the Lucene index or the file.
+   */
+  public static void write (String path, String[] fields, double k1,
+                            double b, final int blockSize) throws IOException {
+
+    //  Lists are buffered so that the number of lists can be written first.
+
+    ByteArrayOutputStream listBytes = new ByteArrayOutputStream ();
+    final DataOutputStream lists = new DataOutputStream (listBytes);
+    final int[] numLists = {0};
+    final int lastDoc = Idx.getContext ().getReader ().maxDoc () - 1;
+    long numDocs = Idx.getNumDocs ();
+
+    scorePostings (fields, k1, b, blockSize + 1, new PostingsVisitor () {
+      public void visit (String field, String term, int df, int[] docids,
+                         double[] scores, int n) throws IOException {
+
+        int numBlocks = (n + blockSize - 1) / blockSize;
+
+        lists.writeUTF (field);
+        lists.writeUTF (term);
+        lists.writeInt (df);
+        lists.writeInt (numBlocks);
+
+        //  A partial last block extends to the end of the index.
+
+        for (int start = 0; start < n; start += blockSize) {
+          int end = Math.min (start + blockSize, n);
+          double blockMax = 0;
+
+          for (int i = start; i < end; i++) {
+            blockMax = Math.max (blockMax, scores[i]);
+          }
+
+          lists.writeInt ((end - start == blockSize) ? docids[end - 1] : lastDoc);
+          lists.writeFloat (roundUp (blockMax));
+        }
+
+        numLists[0] ++;
+      }
+    });
+
+    lists.close ();
+
+    DataOutputStream out = new DataOutputStream (
+      new BufferedOutputStream (new FileOutputStream (path)));
+
+    try {
+      out.writeInt (MAGIC);
+      out.writeDouble (k1);
+      out.writeDouble (b);
+      out.writeInt (blockSize);
+      out.writeLong (numDocs);
+      out.writeInt (numLists[0]);
+      listBytes.writeTo (out);
+    } finally {
+      out.close ();
+    }
+
+    System.out.println ("Wrote block bounds for " + numLists[0] + " lists to " + path);
+  }
+
+  /**
+   *  Give every posting of the specified fields its BM25 term score,
+   *  and pass each inverted list's postings to a visitor.  The sidecar
+   *  builders, this class and ImpactIndex, both score postings here,
+   *  with the same arithmetic as QrySopScore.getScoreBM25.
+   *  @param fields The fields to process.
+   *  @param k1 The BM25 k_1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @param minDf Lists with a smaller document frequency are skipped.
+   *  @param visitor Receives each list's postings.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static void scorePostings (String[] fields, double k1, double b, int minDf,
+                             PostingsVisitor visitor) throws IOException {
+
+    long numDocs = Idx.getNumDocs ();
+    double oneMinusB = 1.0 - b;
+    int[] docids = new int[16];
+    double[] scores = new double[16];
+
+    for (String field : fields) {
+
+      Terms terms = MultiFields.getTerms (Idx.getContext ().getReader (), field);
+
+      if (terms == null) {
+        continue;
+      }
+
+      double avgLength =
+        (double) Idx.getSumOfFieldLengths (field) / Idx.getDocCount (field);
+      TermsEnum ithTerm = terms.iterator ();
+      PostingsEnum postings = null;
+
+      while (ithTerm.next () != null) {
+
+        int df = ithTerm.docFreq ();
+
+        if (df < minDf) {
+          continue;
+        }
+
+        double idf = Math.max (Math.log ((numDocs - df + 0.5) / (df + 0.5)), 0);
+        int n = 0;
+        int docid;
+
+        postings = ithTerm.postings (postings, PostingsEnum.FREQS);
+
+        while ((docid = postings.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+
+          if (n == docids.length) {
+            docids = Arrays.copyOf (docids, 2 * n);
+            scores = Arrays.copyOf (scores, 2 * n);
+          }
+
+          double tf = postings.freq ();
+          double docLen = Idx.getFieldLength (field, docid);
+          docids[n] = docid;
+          scores[n] = idf * (tf / (tf + k1 * (oneMinusB + b * (docLen / avgLength))));
+          n ++;
+        }
+
+        visitor.visit (field, ithTerm.term ().utf8ToString (), df, docids, scores, n);
+      }
+    }
+  }
+
+  /**
+   *  Receives the scored postings of each inverted list (see
+   *  scorePostings).  docids and scores are reused for the next list.
+   */
+  interface PostingsVisitor {
+    void visit (String field, String term, int df, int[] docids,
+                double[] scores, int n) throws IOException;
+  }
+
+  /**
+   *  Convert a score to a float that is not smaller than the score.
+   *  @param score A score.
+   *  @return The rounded score.
+   */
+  private static float roundUp (double score) {
+    float f = (float) score;
+    return (f < score) ? Math.nextUp (f) : f;
+  }
+
+  /**
+   *  Build a sidecar file.
+   *  @param args The command line arguments; see the usage message.
+   *  @throws Exception Error accessing the Lucene index or the file.
+   */
+  public static void main (String[] args) throws Exception {
+
+    String indexPath = null;
+    String output = null;
+    String[] fields = DEFAULT_FIELDS;
+    double k1 = -1;
+    double b = -1;
+    int blockSize = DEFAULT_BLOCK_SIZE;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[i+1];
+      } else if ("-output".equals (args[i])) {
+        output = args[i+1];
+      } else if ("-k1".equals (args[i])) {
+        k1 = Double.parseDouble (args[i+1]);
+      } else if ("-b".equals (args[i])) {
+        b = Double.parseDouble (args[i+1]);
+      } else if ("-blockSize".equals (args[i])) {
+        blockSize = Integer.parseInt (args[i+1]);
+      } else if ("-fields".equals (args[i])) {
+        fields = args[i+1].split (",");
+      } else {
+        System.err.println (usage);
+        System.exit (1);
+      }
+    }
+
+    if ((indexPath == null) || (output == null) || (k1 < 0) ||
+        (b < 0) || (b > 1) || (blockSize < 1)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    Idx.open (indexPath);
+    write (output, fields, k1, b, blockSize);
+  }
+}
@@ -3,8 +3,14 @@
  */
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.MultiDocValues;
@@ -12,23 +18,127 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * Each field that has lengths is given an ordinal, so that callers that
+ * access the same field many times (e.g., a query term's score operator)
+ * can avoid looking the field up by name.  By default lengths are read
+ * from the Lucene norms.  After preload is called they are read from
+ * dense arrays instead.  Each field uses the narrowest array type that
+ * holds its longest document (byte, char or int), so a collection of
+ * short fields costs one or two bytes per document per field.
+ * </p><p>
+ * A DocLengthStore may be used by several threads at once.  Lucene's
+ * norms readers can't be shared, so each thread gets its own.
+ * </p>
  */
 public class DocLengthStore  {
 
-  private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private final IndexReader reader;
+  private final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+  private final List<String> fields = new ArrayList<String>();
+  private final Map<String, Long> minLengths = new ConcurrentHashMap<String, Long>();
+
+  /**
+   * Each thread's norms, indexed by field ordinal.
+   */
+  private final ThreadLocal<NumericDocValues[]> values =
+    new ThreadLocal<NumericDocValues[]>() {
+      protected NumericDocValues[] initialValue() {
+        try {
+          return getNormValues();
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      }
+    };
+
+  /**
+   * Preloaded lengths, indexed by field ordinal.  At most one of
+   * byteLengths[f], charLengths[f] and intLengths[f] is non-null.
+   */
+  private volatile boolean preloaded = false;
+  private byte[][] byteLengths;
+  private char[][] charLengths;
+  private int[][] intLengths;
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
    * @throws IOException Error accessing the Lucene index.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
+    this(reader, MultiFields.getIndexedFields(reader));
+  }
+
+  /**
+   * A store whose field ordinals are assigned from a specified list of
+   * fields, e.g., so that every segment of an index uses the same
+   * ordinals.  A field that the reader doesn't have is 0 long in
+   * every document.
+   *
+   * @param reader An index, or one segment of an index.
+   * @param fields The fields.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public DocLengthStore(IndexReader reader, Collection<String> fields) throws IOException {
     this.reader = reader;
-    for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+    for (String field : fields) {
+      this.ordinals.put(field, this.fields.size());
+      this.fields.add(field);
     }
   }
 
+  /**
+   * Returns the fields, in ordinal order.
+   *
+   * @return The fields.
+   */
+  public List<String> getFields() {
+    return fields;
+  }
+
+  /**
+   * Open the norms of every field.
+   *
+   * @return The norms, indexed by field ordinal.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  private NumericDocValues[] getNormValues() throws IOException {
+    NumericDocValues[] norms = new NumericDocValues[fields.size()];
+    for (int f = 0; f < norms.length; f++) {
+      norms[f] = MultiDocValues.getNormValues(reader, fields.get(f));
+      if (norms[f] == null) {
+        norms[f] = DocValues.emptyNumeric();    // No norms in this reader
+      }
+    }
+    return norms;
+  }
+
+  /**
+   * Get this thread's norms, opening them the first time.
+   *
+   * @return The norms, indexed by field ordinal.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  private NumericDocValues[] getThreadNormValues() throws IOException {
+    try {
+      return values.get();
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    }
+  }
+
+  /**
+   * Returns the ordinal of the specified field, for use with
+   * {@link #getDocLength(int, int)}.
+   *
+   * @param fieldname Name of field to access lengths.
+   * @return int The field ordinal, or -1 if the field isn't indexed.
+   */
+  public int getFieldOrdinal(String fieldname) {
+    Integer ordinal = ordinals.get(fieldname);
+    return (ordinal == null) ? -1 : ordinal;
+  }
+
   /**
    * Returns the length of the specified field in the specified document.
    *
@@ -39,6 +149,147 @@ public class DocLengthStore  {
    * @throws IOException Error accessing the Lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return getDocLength(ordinals.get(fieldname), docid);
+  }
+
+  /**
+   * Returns the length of the specified field in the specified document.
+   *
+   * @param field The field ordinal, from {@link #getFieldOrdinal}.
+   * @param docid The internal docid in the lucene index.
+   * @return long The length of the field.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public long getDocLength(int field, int docid) throws IOException {
+    if (preloaded) {
+      byte[] b = byteLengths[field];
+      if (b != null) {
+        return b[docid] & 0xFF;
+      }
+      char[] c = charLengths[field];
+      if (c != null) {
+        return c[docid];
+      }
+      return intLengths[field][docid];
+    }
+    return getThreadNormValues()[field].get(docid);
+  }
+
+  /**
+   * Returns the lengths of the specified field in several documents.
+   *
+   * @param field   The field ordinal, from {@link #getFieldOrdinal}.
+   * @param docids  The internal docids in the lucene index.
+   * @param n       The number of docids.
+   * @param lengths Receives the length of the field in each document.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public void getDocLengths(int field, int[] docids, int n, int[] lengths) throws IOException {
+    if (preloaded) {
+      byte[] b = byteLengths[field];
+      char[] c = charLengths[field];
+      if (b != null) {
+        for (int i = 0; i < n; i++) {
+          lengths[i] = b[docids[i]] & 0xFF;
+        }
+      } else if (c != null) {
+        for (int i = 0; i < n; i++) {
+          lengths[i] = c[docids[i]];
+        }
+      } else {
+        int[] l = intLengths[field];
+        for (int i = 0; i < n; i++) {
+          lengths[i] = l[docids[i]];
+        }
+      }
+      return;
+    }
+    NumericDocValues norms = getThreadNormValues()[field];
+    for (int i = 0; i < n; i++) {
+      lengths[i] = (int) norms.get(docids[i]);
+    }
+  }
+
+  /**
+   * Copy the lengths of every field into memory, so that later calls
+   * don't read the Lucene norms.  Calling it again has no effect.
+   *
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public synchronized void preload() throws IOException {
+    if (preloaded) {
+      return;
+    }
+
+    NumericDocValues[] norms = getNormValues();
+    int numFields = norms.length;
+    int maxDoc = reader.maxDoc();
+    byteLengths = new byte[numFields][];
+    charLengths = new char[numFields][];
+    intLengths = new int[numFields][];
+
+    for (int f = 0; f < numFields; f++) {
+      NumericDocValues lengths = norms[f];
+
+      //  Read the lengths once to find the narrowest encoding.
+
+      int[] l = new int[maxDoc];
+      long max = 0;
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+        long length = lengths.get(docid);
+        l[docid] = (int) length;
+        max = Math.max(max, length);
+      }
+
+      if (max <= 0xFF) {
+        byte[] b = new byte[maxDoc];
+        for (int docid = 0; docid < maxDoc; docid++) {
+          b[docid] = (byte) l[docid];
+        }
+        byteLengths[f] = b;
+      } else if (max <= Character.MAX_VALUE) {
+        char[] c = new char[maxDoc];
+        for (int docid = 0; docid < maxDoc; docid++) {
+          c[docid] = (char) l[docid];
+        }
+        charLengths[f] = c;
+      } else {
+        intLengths[f] = l;
+      }
+    }
+
+    preloaded = true;
+  }
+
+  /**
+   * Returns the smallest non-zero length of the specified field in any
+   * document.  It is computed the first time that it is requested.
+   *
+   * @param fieldname Name of field to access lengths.
+   * @return long The minimum length of the field, or 0 if no document
+   * has the field.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public long getMinDocLength(String fieldname) throws IOException {
+    Long min = minLengths.get(fieldname);
+
+    if (min == null) {
+      int field = ordinals.get(fieldname);
+      long m = Long.MAX_VALUE;
+
+      for (int docid = 0; docid < reader.maxDoc(); docid++) {
+        long length = getDocLength(field, docid);
+
+        if ((length > 0) && (length < m)) {
+          m = length;
+        }
+      }
+
+      min = (m == Long.MAX_VALUE) ? 0L : m;
+      minLengths.put(fieldname, min);
+    }
+
+    return min;
   }
 }
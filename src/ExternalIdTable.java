@@ -0,0 +1,431 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  A table of the external document ids of an index.  The distinct
+ *  external ids are kept in ascending String order, and each internal
+ *  docid is mapped to the ordinal of its external id in that order.
+ *  Comparing two ordinals gives the same result as comparing the two
+ *  external ids, so score ties can be broken with an integer
+ *  comparison, and an external id can be found without reading the
+ *  stored Document.
+ *  <p>
+ *  The table is built from the terms of the external id field, which
+ *  costs one pass over that field's inverted lists.  It can be saved
+ *  in a file next to the index (see load), so that later runs use it
+ *  instead.  The file records the index version, and it is rebuilt if
+ *  the index has changed.
+ *  </p><p>
+ *  The table is four flat arrays:  the UTF-8 bytes of the sorted
+ *  external ids, one after another; the offset of each id in those
+ *  bytes; the docid of each ordinal; and the ordinal of each docid.
+ *  The file stores them in the same layout, and read memory-maps it,
+ *  so opening a table doesn't depend on the size of the collection,
+ *  and the table isn't on the Java heap.  Looking up an internal docid
+ *  is a binary search of the sorted external ids; only the ids that
+ *  the search visits are decoded.
+ *  </p>
+ */
+public class ExternalIdTable {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x45584932;		// "EXI2"
+
+  /**
+   *  The length of the file header:  MAGIC, the index version, maxDoc,
+   *  the number of external ids, and the length of their bytes.
+   */
+  private static final int HEADER_LENGTH = 4 + 8 + 4 + 4 + 4;
+
+  /**
+   *  The version of the index that the table was built from.
+   */
+  private long indexVersion;
+
+  /**
+   *  The number of distinct external ids.
+   */
+  private int count;
+
+  /**
+   *  The UTF-8 bytes of the distinct external ids, in ascending String
+   *  order.
+   */
+  private ByteBuffer ids;
+
+  /**
+   *  The offset of each external id in ids.  There are count+1
+   *  offsets; the last one is the length of ids.
+   */
+  private IntBuffer offsets;
+
+  /**
+   *  The internal docid of each ordinal's document, or -2 if several
+   *  documents have the same external id.
+   */
+  private IntBuffer docids;
+
+  /**
+   *  The ordinal of each internal docid's external id, or -1 if the
+   *  document doesn't have one.
+   */
+  private IntBuffer ordinals;
+
+  //  --------------- Methods ---------------------------------------
+
+  private ExternalIdTable () {
+  }
+
+  /**
+   *  Build the table for an index.
+   *  @param reader The index.
+   *  @param field The field that stores the external ids.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ExternalIdTable (IndexReader reader, String field) throws IOException {
+
+    this.indexVersion = ExternalIdTable.getIndexVersion (reader);
+
+    int[] ordinals = new int[reader.maxDoc ()];
+    Arrays.fill (ordinals, -1);
+
+    //  Lucene orders terms by their UTF-8 bytes, which isn't always
+    //  String order, so the terms are collected and sorted first.
+
+    ArrayList<String> ids = new ArrayList<String> ();
+    ArrayList<int[]> docids = new ArrayList<int[]> ();
+    Terms terms = MultiFields.getTerms (reader, field);
+
+    if (terms != null) {
+      TermsEnum ithTerm = terms.iterator ();
+      PostingsEnum postings = null;
+
+      while (ithTerm.next () != null) {
+        int[] d = new int[ithTerm.docFreq ()];
+        int n = 0;
+
+        postings = ithTerm.postings (postings, PostingsEnum.NONE);
+
+        while ((n < d.length) &&
+               (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS)) {
+          d[n++] = postings.docID ();
+        }
+
+        ids.add (ithTerm.term ().utf8ToString ());
+        docids.add ((n == d.length) ? d : Arrays.copyOf (d, n));
+      }
+    }
+
+    Integer[] order = new Integer[ids.size ()];
+
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+
+    final ArrayList<String> unsorted = ids;
+    Arrays.sort (order, new Comparator<Integer> () {
+      public int compare (Integer a, Integer b) {
+        return unsorted.get (a).compareTo (unsorted.get (b));
+      }
+    });
+
+    //  Encode the sorted ids into one array of bytes.
+
+    byte[][] bytes = new byte[order.length][];
+    int[] offsets = new int[order.length + 1];
+    long length = 0;
+
+    for (int k = 0; k < order.length; k++) {
+      bytes[k] = ids.get (order[k]).getBytes (StandardCharsets.UTF_8);
+      offsets[k] = (int) length;
+      length += bytes[k].length;
+
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException ("The external ids of the index take more than 2 GB.");
+      }
+
+      for (int docid : docids.get (order[k])) {
+        ordinals[docid] = k;
+      }
+    }
+
+    offsets[order.length] = (int) length;
+
+    ByteBuffer idBytes = ByteBuffer.allocate ((int) length);
+
+    for (byte[] b : bytes) {
+      idBytes.put (b);
+    }
+
+    idBytes.clear ();
+
+    this.count = order.length;
+    this.ids = idBytes;
+    this.offsets = IntBuffer.wrap (offsets);
+    this.docids = IntBuffer.wrap (ExternalIdTable.getDocids (ordinals, this.count));
+    this.ordinals = IntBuffer.wrap (ordinals);
+  }
+
+  /**
+   *  Invert the ordinals array.
+   *  @param ordinals The ordinal of each internal docid, or -1.
+   *  @param count The number of ordinals.
+   *  @return The docid of each ordinal, or -2 if it has several.
+   */
+  private static int[] getDocids (int[] ordinals, int count) {
+
+    int[] docids = new int[count];
+    Arrays.fill (docids, -1);
+
+    for (int docid = 0; docid < ordinals.length; docid++) {
+      int ordinal = ordinals[docid];
+
+      if (ordinal >= 0) {
+        docids[ordinal] = (docids[ordinal] == -1) ? docid : -2;
+      }
+    }
+
+    return docids;
+  }
+
+  /**
+   *  Get the version of an index, if it has one.
+   *  @param reader The index.
+   *  @return The index version, or -1 if it isn't known.
+   */
+  private static long getIndexVersion (IndexReader reader) {
+    return (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion () : -1;
+  }
+
+  /**
+   *  Get the name of the file that stores the table of an index.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @return The file name.
+   */
+  public static String getPath (String indexPath) {
+    return Paths.get (indexPath).toAbsolutePath ().normalize ().toString () +
+      ".extids";
+  }
+
+  /**
+   *  Get the table of an index.  The table is read from the file next
+   *  to the index if the file is current; otherwise it is built and
+   *  the file is (re)written.  Failure to write the file isn't fatal.
+   *  @param reader The index.
+   *  @param indexPath The directory that contains the index.
+   *  @param field The field that stores the external ids.
+   *  @return The table.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ExternalIdTable load (IndexReader reader, String indexPath,
+                                      String field) throws IOException {
+
+    String path = ExternalIdTable.getPath (indexPath);
+    ExternalIdTable table = ExternalIdTable.read (reader, path);
+
+    if (table == null) {
+      table = new ExternalIdTable (reader, field);
+
+      try {
+        table.write (path);
+      } catch (IOException ex) {
+        System.err.println ("Warning:  Can't write " + path + ": " + ex.getMessage ());
+      }
+    }
+
+    return table;
+  }
+
+  /**
+   *  Read a table file, if it exists and matches the index.  The file
+   *  is memory-mapped, not copied.
+   *  @param reader The index.
+   *  @param path The table file.
+   *  @return The table, or null if the file is missing or out of date.
+   */
+  public static ExternalIdTable read (IndexReader reader, String path) {
+
+    File file = new File (path);
+
+    if (! file.isFile ()) {
+      return null;
+    }
+
+    try (FileChannel channel =
+           FileChannel.open (file.toPath (), StandardOpenOption.READ)) {
+
+      if (channel.size () < HEADER_LENGTH) {
+        return null;
+      }
+
+      ByteBuffer header = channel.map (FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+      long indexVersion = ExternalIdTable.getIndexVersion (reader);
+      int maxDoc = reader.maxDoc ();
+
+      if ((header.getInt () != MAGIC) ||
+          (header.getLong () != indexVersion) ||
+          (header.getInt () != maxDoc)) {
+        return null;
+      }
+
+      int count = header.getInt ();
+      int idsLength = header.getInt ();
+
+      if ((count < 0) || (idsLength < 0) ||
+          (channel.size () != HEADER_LENGTH + 4L * (count + 1) + 4L * count +
+                              4L * maxDoc + idsLength)) {
+        return null;
+      }
+
+      ExternalIdTable table = new ExternalIdTable ();
+      long position = HEADER_LENGTH;
+
+      table.indexVersion = indexVersion;
+      table.count = count;
+      table.offsets = ExternalIdTable.mapInts (channel, position, count + 1);
+      position += 4L * (count + 1);
+      table.docids = ExternalIdTable.mapInts (channel, position, count);
+      position += 4L * count;
+      table.ordinals = ExternalIdTable.mapInts (channel, position, maxDoc);
+      position += 4L * maxDoc;
+      table.ids = channel.map (FileChannel.MapMode.READ_ONLY, position, idsLength);
+      return table;
+    } catch (IOException ex) {
+      return null;                      // Treat a damaged file as missing
+    }
+  }
+
+  /**
+   *  Memory-map an array of ints in a table file.
+   *  @param channel The table file.
+   *  @param position The file position of the array.
+   *  @param length The number of ints.
+   *  @return The array.
+   *  @throws IOException Error mapping the file.
+   */
+  private static IntBuffer mapInts (FileChannel channel, long position,
+                                    int length) throws IOException {
+    return channel.map (FileChannel.MapMode.READ_ONLY, position, 4L * length).asIntBuffer ();
+  }
+
+  /**
+   *  Write the table to a file.
+   *  @param path The table file.
+   *  @throws IOException Error writing the file.
+   */
+  public void write (String path) throws IOException {
+
+    try (DataOutputStream out = new DataOutputStream (
+           new BufferedOutputStream (new FileOutputStream (path)))) {
+
+      out.writeInt (MAGIC);
+      out.writeLong (this.indexVersion);
+      out.writeInt (this.ordinals.limit ());
+      out.writeInt (this.count);
+      out.writeInt (this.ids.limit ());
+
+      ExternalIdTable.writeInts (out, this.offsets);
+      ExternalIdTable.writeInts (out, this.docids);
+      ExternalIdTable.writeInts (out, this.ordinals);
+
+      ByteBuffer ids = this.ids.duplicate ();
+      byte[] chunk = new byte[8192];
+
+      while (ids.hasRemaining ()) {
+        int n = Math.min (chunk.length, ids.remaining ());
+        ids.get (chunk, 0, n);
+        out.write (chunk, 0, n);
+      }
+    }
+  }
+
+  /**
+   *  Write an array of ints to a table file.
+   *  @param out The table file.
+   *  @param ints The array.
+   *  @throws IOException Error writing the file.
+   */
+  private static void writeInts (DataOutputStream out, IntBuffer ints)
+    throws IOException {
+    for (int i = 0; i < ints.limit (); i++) {
+      out.writeInt (ints.get (i));
+    }
+  }
+
+  /**
+   *  Decode the external id that has an ordinal.
+   *  @param ordinal An ordinal.
+   *  @return The external id.
+   */
+  private String getId (int ordinal) {
+
+    int start = this.offsets.get (ordinal);
+    byte[] bytes = new byte[this.offsets.get (ordinal + 1) - start];
+    ByteBuffer ids = this.ids.duplicate ();	// Readers share this.ids
+
+    ids.position (start);
+    ids.get (bytes);
+    return new String (bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Get the internal document id of a document.  If no such document
+   *  exists, throw an exception.
+   *  @param externalId The external docid.
+   *  @return The internal docid.
+   *  @throws Exception The external id doesn't identify one document.
+   */
+  public int getInternalDocid (String externalId) throws Exception {
+
+    int lo = 0;
+    int hi = this.count - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = this.getId (mid).compareTo (externalId);
+
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else if (this.docids.get (mid) == -2) {
+        throw new Exception ("Multiple matches for external id " + externalId);
+      } else {
+        return this.docids.get (mid);
+      }
+    }
+
+    throw new Exception ("External id " + externalId + " not found.");
+  }
+
+  /**
+   *  Get the external document id of a document.
+   *  @param docid An internal document id.
+   *  @return The external document id, or null if there is none.
+   */
+  public String getExternalDocid (int docid) {
+    int ordinal = this.ordinals.get (docid);
+    return (ordinal < 0) ? null : this.getId (ordinal);
+  }
+
+  /**
+   *  Get the ordinal of a document's external id.  Ordinals compare
+   *  the same way as the external ids.
+   *  @param docid An internal document id.
+   *  @return The ordinal, or -1 if the document has no external id.
+   */
+  public int getOrdinal (int docid) {
+    return this.ordinals.get (docid);
+  }
+}
@@ -1,10 +1,8 @@
 /** 
  *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
  */
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
 import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.BytesRef;
 
 import java.io.IOException;
 import java.nio.file.Paths;
@@ -19,6 +17,12 @@ import java.util.HashMap;
  *  federated search).  The Idx class designates one index the
  *  <i>current</i> index.  All requests are satisfied from the current
  *  index.  setCurrentIndex changes the current index.
+ *  </p><p>
+ *  Each open index is represented by an immutable IndexContext.  The
+ *  static methods of this class are shorthand for calling the current
+ *  context.  Code that may run in several threads, or that must not
+ *  be affected by setCurrentIndex, should get a context with
+ *  getContext and use it directly.
  *  </p>
  */
 public class Idx {
@@ -26,20 +30,23 @@ public class Idx {
   //  --------------- Constants and variables ---------------------
 
   /**
-   *  The Lucene index that is considered the current index.
+   *  The index that is considered the current index.
    */
-  public static IndexReader INDEXREADER=null;
+  private static volatile IndexContext CURRENT=null;
 
-  private static DocLengthStore DOCLENGTHSTORE=null;
-
-  private static HashMap<String,IndexReader> openIndexReaders =
-    new HashMap<String,IndexReader> ();
-  private static HashMap<String,DocLengthStore> openDocLengthStores =
-    new HashMap<String,DocLengthStore> ();
-  private static String externalIdField = new String ("externalId");
+  private static HashMap<String,IndexContext> openIndexes =
+    new HashMap<String,IndexContext> ();
 
   //  --------------- Methods ---------------------------------------
 
+  /**
+   *  Get the current index.
+   *  @return The current index.
+   */
+  public static IndexContext getContext () {
+    return Idx.CURRENT;
+  }
+
   /**
    *  Get the specified attribute from the specified document.
    *  @param attributeName Name of attribute
@@ -49,9 +56,7 @@ public class Idx {
    */
   public static String getAttribute (String attributeName, int docid)
     throws IOException {
-
-    Document d = Idx.INDEXREADER.document (docid);
-    return d.get (attributeName);
+    return Idx.CURRENT.getAttribute (attributeName, docid);
   }
 
   /**
@@ -62,7 +67,7 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return Idx.CURRENT.getDocCount (fieldName);
   }
 
   /**
@@ -73,9 +78,18 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get(externalIdField);
-    return eid;
+    return Idx.CURRENT.getExternalDocid (iid);
+  }
+
+  /**
+   *  Get the ordinal of a document's external id, if the external id
+   *  table is loaded (see loadExternalIdTable).  Ordinals compare the
+   *  same way as the external ids.
+   *  @param iid The internal document id of the document.
+   *  @return the ordinal, or -1 if it isn't known.
+   */
+  public static int getExternalDocidOrdinal (int iid) {
+    return Idx.CURRENT.getExternalDocidOrdinal (iid);
   }
 
   /**
@@ -87,7 +101,43 @@ public class Idx {
    */
   public static int getFieldLength (String fieldName, int docid)
     throws IOException {
-    return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
+    return Idx.CURRENT.getFieldLength (fieldName, docid);
+  }
+
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  This is faster than looking the field up by name when the same
+   *  field is accessed many times.
+   *  @param fieldOrdinal The field ordinal, from getFieldOrdinal.
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getFieldLength (int fieldOrdinal, int docid)
+    throws IOException {
+    return Idx.CURRENT.getFieldLength (fieldOrdinal, docid);
+  }
+
+  /**
+   *  Get the ordinal of a field, for use with getFieldLength.  Ordinals
+   *  belong to the current index.
+   *  @param fieldName Name of field to access lengths.
+   *  @return the field ordinal, or -1 if the field isn't indexed.
+   */
+  public static int getFieldOrdinal (String fieldName) {
+    return Idx.CURRENT.getFieldOrdinal (fieldName);
+  }
+
+  /**
+   *  Get the smallest non-zero length of the specified field in any
+   *  document.
+   *  @param fieldName Name of field to access lengths.
+   *  @return the minimum length of the field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getMinFieldLength (String fieldName)
+    throws IOException {
+    return Idx.CURRENT.getMinFieldLength (fieldName);
   }
 
   /**
@@ -100,21 +150,7 @@ public class Idx {
    */
   public static int getInternalDocid(String externalId)
     throws Exception {
-
-    BytesRef termBytes = new BytesRef (externalId);
-    Term term = new Term (externalIdField, termBytes);
-    int df = Idx.INDEXREADER.docFreq (term);
-
-    if (df == 0) {
-      throw new Exception ("External id " + externalId + " not found.");
-    } else if (df > 1) {
-      throw new Exception ("Multiple matches for external id " + externalId);
-    }
-
-    PostingsEnum iList =
-      MultiFields.getTermPositionsEnum (Idx.INDEXREADER, externalIdField, termBytes);
-    iList.nextDoc();
-    return (iList.docID());
+    return Idx.CURRENT.getInternalDocid (externalId);
   }
 
   /**
@@ -123,7 +159,7 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return Idx.CURRENT.getNumDocs ();
   }
 
   /**
@@ -136,7 +172,7 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.CURRENT.getSumOfFieldLengths (fieldName);
   }
 
 
@@ -151,7 +187,7 @@ public class Idx {
    */
   public static long getTotalTermFreq (String fieldName, String term)
     throws IOException {
-    return INDEXREADER.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+    return Idx.CURRENT.getTotalTermFreq (fieldName, term);
   }
 
 
@@ -161,7 +197,7 @@ public class Idx {
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
    */
-  public static void open (String indexPath)
+  public static synchronized void open (String indexPath)
     throws IllegalArgumentException, IOException {
 
     IndexReader indexReader;
@@ -187,34 +223,64 @@ public class Idx {
 
     //  Keep track of the open indexes.
 
-    openIndexReaders.put (indexPath, indexReader);
-    openDocLengthStores.put (indexPath, docLengthStore);
+    IndexContext index =
+      new IndexContext (indexReader, indexPath, docLengthStore, null);
+
+    openIndexes.put (indexPath, index);
 
     //  The current index defaults to the first open index.
 
-    if (Idx.INDEXREADER == null) {
-      Idx.INDEXREADER = indexReader;
-      Idx.DOCLENGTHSTORE = docLengthStore;
+    if (Idx.CURRENT == null) {
+      Idx.CURRENT = index;
+    }
+  }
+
+  /**
+   *  Load a table of the external document ids of the current index,
+   *  so that getExternalDocid doesn't read stored documents,
+   *  getInternalDocid doesn't search the index, and score ties can be
+   *  broken by comparing ordinals.  The table is saved next to the
+   *  index, so it is only built once; later runs memory-map it.
+   *  Contexts that were obtained before the table was loaded don't use
+   *  it.
+   *  @throws IOException Error accessing the index.
+   */
+  public static synchronized void loadExternalIdTable ()
+    throws IOException {
+
+    IndexContext index = Idx.CURRENT.withExternalIdTable ();
+
+    if (index != Idx.CURRENT) {
+      openIndexes.put (index.getIndexPath (), index);
+      Idx.CURRENT = index;
     }
   }
 
+  /**
+   *  Copy the field lengths of the current index into memory, so that
+   *  getFieldLength doesn't read the Lucene norms.
+   *  @throws IOException Error accessing the index.
+   */
+  public static void preloadFieldLengths ()
+    throws IOException {
+    Idx.CURRENT.preloadFieldLengths ();
+  }
+
   /**
    *  Change the current index to another open Lucene index.
    *  @param indexPath A directory that contains an open Lucene index.
    *  @throws IllegalArgumentException The specified index isn't open.
    */
-  public static void setCurrentIndex (String indexPath)
+  public static synchronized void setCurrentIndex (String indexPath)
     throws IllegalArgumentException {
 
-    IndexReader indexReader = openIndexReaders.get (indexPath);
-    DocLengthStore docLengthStore = openDocLengthStores.get (indexPath);
+    IndexContext index = openIndexes.get (indexPath);
 
-    if ((indexReader == null) || (docLengthStore == null)) {
+    if (index == null) {
       throw new IllegalArgumentException (
         "An index must be open before it can be the current index");
     }
 
-    Idx.INDEXREADER = indexReader;
-    Idx.DOCLENGTHSTORE = docLengthStore;
+    Idx.CURRENT = index;
   }
 }
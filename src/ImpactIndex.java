@@ -0,0 +1,491 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  An impact-ordered copy of the inverted lists of a Lucene index, for
+ *  score-at-a-time BM25 evaluation (see SaatEvaluator).  Each posting's
+ *  BM25 term score (its <i>impact</i>) is quantized to a small integer,
+ *  and each inverted list is stored as segments of postings that have
+ *  the same impact, in descending impact order.  Within a segment the
+ *  docids are ascending and delta-encoded.
+ *  <p>
+ *  Impacts are quantized linearly:  a score s becomes
+ *  ceil (s / scale), where scale is the largest score in the index
+ *  divided by 2^bits - 1, so impacts from different lists can be added.
+ *  Run the class to build an impact file; run it with no arguments to
+ *  see a usage message.  Like a BlockMaxIndex, an impact file is only
+ *  valid for the BM25 parameters and the index that it was built for.
+ *  </p><p>
+ *  The file ends with a directory of the lists.  Opening a file reads
+ *  just the directory; each list is read the first time it is needed.
+ *  </p>
+ */
+public class ImpactIndex implements Closeable {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x494d5031;		// "IMP1"
+
+  private static final int DEFAULT_BITS = 8;
+
+  private static final String[] DEFAULT_FIELDS =
+    {"body", "title", "url", "inlink", "keywords"};
+
+  static String usage =
+    "Usage:  java ImpactIndex -index INDEX_PATH -output IMPACT_PATH\n" +
+    "         -k1 K_1 -b B [-bits N] [-fields FIELD,FIELD,...]\n";
+
+  private RandomAccessFile file;
+  private double k1;
+  private double b;
+  private int bits;
+  private long numDocs;
+  private double scale;
+  private HashSet<String> fields = new HashSet<String> ();
+
+  //  The location of each list in the file, and the lists that have
+  //  been read.
+
+  private HashMap<String,long[]> directory = new HashMap<String,long[]> ();
+  private ConcurrentHashMap<String,Impacts> lists =
+    new ConcurrentHashMap<String,Impacts> ();
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The impact-ordered postings of one inverted list.  Segment k holds
+   *  the docids docids[starts[k]] .. docids[starts[k+1]-1], in
+   *  ascending order, which all have impact impacts[k].  Impacts are in
+   *  descending order.
+   */
+  public static class Impacts {
+
+    /**
+     *  The impact of each segment.
+     */
+    public final int[] impacts;
+
+    /**
+     *  The index in docids of the first posting of each segment, and
+     *  the number of postings.
+     */
+    public final int[] starts;
+
+    /**
+     *  The docids of all segments.
+     */
+    public final int[] docids;
+
+    private Impacts (int[] impacts, int[] starts, int[] docids) {
+      this.impacts = impacts;
+      this.starts = starts;
+      this.docids = docids;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  private ImpactIndex () {
+  }
+
+  /**
+   *  Get the factor that converts impacts to (approximate) BM25 scores.
+   *  @return The quantization scale.
+   */
+  public double getScale () {
+    return this.scale;
+  }
+
+  /**
+   *  Get the largest impact that a posting can have.
+   *  @return The largest impact.
+   */
+  public int getMaxImpact () {
+    return (1 << this.bits) - 1;
+  }
+
+  /**
+   *  Whether the file covers the specified field.
+   *  @param field A field name.
+   *  @return True if the field's lists were processed.
+   */
+  public boolean hasField (String field) {
+    return this.fields.contains (field);
+  }
+
+  /**
+   *  Get the impact-ordered postings of an inverted list.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @param field The field that the term occurs in.
+   *  @return The postings, or null if the term doesn't occur in the
+   *    field.
+   *  @throws IOException Error reading the file.
+   */
+  public Impacts getImpacts (String term, String field) throws IOException {
+
+    String key = term + "." + field;
+    Impacts impacts = this.lists.get (key);
+
+    if (impacts != null) {
+      return impacts;
+    }
+
+    long[] location = this.directory.get (key);
+
+    if (location == null) {
+      return null;
+    }
+
+    byte[] bytes = new byte[(int) location[1]];
+
+    synchronized (this.file) {
+      this.file.seek (location[0]);
+      this.file.readFully (bytes);
+    }
+
+    impacts = ImpactIndex.decode (bytes);
+    this.lists.put (key, impacts);
+    return impacts;
+  }
+
+  /**
+   *  Whether the file was built for the specified BM25 parameters and
+   *  index.
+   *  @param k1 The BM25 k_1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @param index The index.
+   *  @return True if the file's impacts are valid.
+   */
+  public boolean isValidFor (double k1, double b, IndexContext index) {
+    return ((this.k1 == k1) && (this.b == b) &&
+            (this.numDocs == index.getNumDocs ()));
+  }
+
+  /**
+   *  Close the impact file.  Lists that haven't been read yet can't be
+   *  read after this.
+   *  @throws IOException Error closing the file.
+   */
+  public void close () throws IOException {
+    synchronized (this.file) {
+      this.file.close ();
+    }
+  }
+
+  /**
+   *  Open an impact file.  The file stays open until close is called,
+   *  because its lists are read on demand.
+   *  @param path The impact file.
+   *  @return The impact index.
+   *  @throws IOException Error reading the file.
+   */
+  public static ImpactIndex open (String path) throws IOException {
+
+    ImpactIndex index = new ImpactIndex ();
+    RandomAccessFile file = new RandomAccessFile (path, "r");
+
+    try {
+      if (file.readInt () != MAGIC) {
+        throw new IOException (path + " is not an impact file.");
+      }
+
+      index.k1 = file.readDouble ();
+      index.b = file.readDouble ();
+      index.bits = file.readInt ();
+      index.numDocs = file.readLong ();
+      index.scale = file.readDouble ();
+
+      int numFields = file.readInt ();
+
+      for (int i = 0; i < numFields; i++) {
+        index.fields.add (file.readUTF ());
+      }
+
+      //  The last 8 bytes locate the directory.
+
+      file.seek (file.length () - 8);
+
+      long dirOffset = file.readLong ();
+      byte[] dirBytes = new byte[(int) (file.length () - 8 - dirOffset)];
+
+      file.seek (dirOffset);
+      file.readFully (dirBytes);
+
+      DataInputStream in =
+        new DataInputStream (new ByteArrayInputStream (dirBytes));
+      int numLists = in.readInt ();
+
+      for (int i = 0; i < numLists; i++) {
+        String field = in.readUTF ();
+        String term = in.readUTF ();
+        long offset = in.readLong ();
+        long length = in.readInt ();
+
+        index.directory.put (term + "." + field, new long[] {offset, length});
+      }
+    } catch (IOException ex) {
+      file.close ();
+      throw ex;
+    }
+
+    index.file = file;
+    return index;
+  }
+
+  /**
+   *  Decode one list.
+   *  @param bytes The encoded list.
+   *  @return The list.
+   */
+  private static Impacts decode (byte[] bytes) {
+
+    int[] p = {0};
+    int numSegments = readVInt (bytes, p);
+    int df = readVInt (bytes, p);
+    int[] impacts = new int[numSegments];
+    int[] starts = new int[numSegments + 1];
+    int[] docids = new int[df];
+    int n = 0;
+
+    for (int k = 0; k < numSegments; k++) {
+      impacts[k] = readVInt (bytes, p);
+      starts[k] = n;
+
+      int count = readVInt (bytes, p);
+      int docid = 0;
+
+      for (int j = 0; j < count; j++) {
+        docid += readVInt (bytes, p);
+        docids[n++] = docid;
+      }
+    }
+
+    starts[numSegments] = n;
+    return new Impacts (impacts, starts, docids);
+  }
+
+  /**
+   *  Read a variable-length int.
+   *  @param bytes The buffer.
+   *  @param p The position in the buffer, which is advanced.
+   *  @return The int.
+   */
+  private static int readVInt (byte[] bytes, int[] p) {
+
+    int value = 0;
+
+    for (int shift = 0; ; shift += 7) {
+      byte b = bytes[p[0]++];
+      value |= (b & 0x7F) << shift;
+
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  /**
+   *  Write a variable-length int, 7 bits per byte.
+   *  @param out The output.
+   *  @param value A non-negative int.
+   *  @throws IOException Error writing the output.
+   */
+  private static void writeVInt (DataOutput out, int value)
+    throws IOException {
+
+    while ((value & ~0x7F) != 0) {
+      out.writeByte ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+
+    out.writeByte (value);
+  }
+
+  /**
+   *  Write an impact file for the current index.
+   *  @param path The impact file.
+   *  @param fields The fields to process.
+   *  @param k1 The BM25 k_1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @param bits The number of bits per impact.
+   *  @throws IOException Error accessing the Lucene index or the file.
+   */
+  public static void write (String path, String[] fields, final double k1,
+                            final double b, int bits) throws IOException {
+
+    //  The first pass finds the largest score, which sets the scale.
+
+    final double[] maxScore = {0};
+
+    BlockMaxIndex.scorePostings (fields, k1, b, 0, new BlockMaxIndex.PostingsVisitor () {
+      public void visit (String field, String term, int df, int[] docids,
+                         double[] scores, int n) {
+        for (int i = 0; i < n; i++) {
+          maxScore[0] = Math.max (maxScore[0], scores[i]);
+        }
+      }
+    });
+
+    final int maxImpact = (1 << bits) - 1;
+    final double scale = (maxScore[0] > 0) ? maxScore[0] / maxImpact : 1.0;
+
+    //  The second pass writes the lists, and remembers where they are.
+
+    final DataOutputStream out = new DataOutputStream (
+      new BufferedOutputStream (new FileOutputStream (path)));
+    final ByteArrayOutputStream dirBytes = new ByteArrayOutputStream ();
+    final DataOutputStream dir = new DataOutputStream (dirBytes);
+    final int[] numLists = {0};
+    final long[] offset = {0};
+
+    try {
+      out.writeInt (MAGIC);
+      out.writeDouble (k1);
+      out.writeDouble (b);
+      out.writeInt (bits);
+      out.writeLong (Idx.getNumDocs ());
+      out.writeDouble (scale);
+      out.writeInt (fields.length);
+
+      for (String field : fields) {
+        out.writeUTF (field);
+      }
+
+      //  DataOutputStream.size is an int, so the offset is kept here.
+
+      offset[0] = out.size ();
+
+      final ByteArrayOutputStream listBytes = new ByteArrayOutputStream ();
+      final DataOutputStream list = new DataOutputStream (listBytes);
+
+      BlockMaxIndex.scorePostings (fields, k1, b, 0, new BlockMaxIndex.PostingsVisitor () {
+        public void visit (String field, String term, int df, int[] docids,
+                           double[] scores, int n) throws IOException {
+
+          //  Count the postings of each impact, then lay the docids out
+          //  by descending impact.  The counting sort keeps each
+          //  segment's docids ascending.
+
+          int[] counts = new int[maxImpact + 2];
+          int[] impacts = new int[n];
+
+          for (int i = 0; i < n; i++) {
+            impacts[i] =
+              (int) Math.min (maxImpact, Math.ceil (scores[i] / scale));
+            counts[maxImpact - impacts[i] + 1] ++;
+          }
+
+          int numSegments = 0;
+
+          for (int s = 1; s < counts.length; s++) {
+            if (counts[s] > 0) {
+              numSegments ++;
+            }
+            counts[s] += counts[s - 1];
+          }
+
+          int[] sorted = new int[n];
+
+          for (int i = 0; i < n; i++) {
+            sorted[counts[maxImpact - impacts[i]] ++] = i;
+          }
+
+          listBytes.reset ();
+          writeVInt (list, numSegments);
+          writeVInt (list, n);
+
+          for (int start = 0; start < n; ) {
+            int impact = impacts[sorted[start]];
+            int end = start;
+
+            while ((end < n) && (impacts[sorted[end]] == impact)) {
+              end ++;
+            }
+
+            writeVInt (list, impact);
+            writeVInt (list, end - start);
+
+            int prev = 0;
+
+            for (int j = start; j < end; j++) {
+              writeVInt (list, docids[sorted[j]] - prev);
+              prev = docids[sorted[j]];
+            }
+
+            start = end;
+          }
+
+          list.flush ();
+          dir.writeUTF (field);
+          dir.writeUTF (term);
+          dir.writeLong (offset[0]);
+          dir.writeInt (listBytes.size ());
+          listBytes.writeTo (out);
+          offset[0] += listBytes.size ();
+          numLists[0] ++;
+        }
+      });
+
+      //  The directory, then its location.
+
+      long dirOffset = offset[0];
+
+      dir.close ();
+      out.writeInt (numLists[0]);
+      dirBytes.writeTo (out);
+      out.writeLong (dirOffset);
+    } finally {
+      out.close ();
+    }
+
+    System.out.println ("Wrote impacts for " + numLists[0] + " lists to " + path);
+  }
+
+  /**
+   *  Build an impact file.
+   *  @param args The command line arguments; see the usage message.
+   *  @throws Exception Error accessing the Lucene index or the file.
+   */
+  public static void main (String[] args) throws Exception {
+
+    String indexPath = null;
+    String output = null;
+    String[] fields = DEFAULT_FIELDS;
+    double k1 = -1;
+    double b = -1;
+    int bits = DEFAULT_BITS;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[i+1];
+      } else if ("-output".equals (args[i])) {
+        output = args[i+1];
+      } else if ("-k1".equals (args[i])) {
+        k1 = Double.parseDouble (args[i+1]);
+      } else if ("-b".equals (args[i])) {
+        b = Double.parseDouble (args[i+1]);
+      } else if ("-bits".equals (args[i])) {
+        bits = Integer.parseInt (args[i+1]);
+      } else if ("-fields".equals (args[i])) {
+        fields = args[i+1].split (",");
+      } else {
+        System.err.println (usage);
+        System.exit (1);
+      }
+    }
+
+    if ((indexPath == null) || (output == null) || (k1 < 0) ||
+        (b < 0) || (b > 1) || (bits < 1) || (bits > 16)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    Idx.open (indexPath);
+    write (output, fields, k1, b, bits);
+  }
+}
@@ -0,0 +1,467 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  An open Lucene index and its auxiliary data structures:  the
+ *  document length store, the (optional) external id table, and
+ *  cached collection statistics.
+ *  <p>
+ *  Every method may be called by several threads at once, so worker
+ *  threads can share one warmed-up index.  A context's index, its
+ *  segments, and its external id table don't change after it is
+ *  created.  Some state is warmed lazily, without changing any result:
+ *  collection statistics are cached in concurrent maps the first time
+ *  they are requested, and preloadFieldLengths copies the field lengths
+ *  into memory even while other threads read them.  DocLengthStore
+ *  fills its arrays in a synchronized preload and then sets a volatile
+ *  flag, so a reader that sees the flag sees the arrays, and a reader
+ *  that doesn't reads the same lengths from the norms.  Lucene's
+ *  TermsEnums can't be shared, so each thread gets its own, which are
+ *  reused for all of that thread's term lookups.
+ *  </p><p>
+ *  An index's context also has a context for each of its segments
+ *  (see getLeaves), which reads postings and norms from the segment
+ *  directly instead of through Lucene's merged (Multi*) views.  Its
+ *  docids are segment-local; add getDocBase to get index docids.
+ *  Collection statistics (numDocs, field lengths, ctf) always
+ *  describe the whole index, so scores don't depend on segmentation.
+ *  </p><p>
+ *  Idx keeps the <i>current</i> IndexContext for code that doesn't
+ *  pass a context explicitly.
+ *  </p>
+ */
+public class IndexContext {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String EXTERNAL_ID_FIELD = "externalId";
+
+  private final IndexReader reader;
+  private final String indexPath;
+  private final DocLengthStore docLengthStore;
+  private final ExternalIdTable externalIdTable;
+
+  //  Segments.  A segment's parent is the whole index; the whole
+  //  index has no parent.
+
+  private final IndexContext parent;
+  private final int docBase;
+  private final List<IndexContext> leaves;
+
+  //  Collection statistics, cached the first time they are requested.
+
+  private final long numDocs;
+  private final ConcurrentHashMap<String,Long> sumOfFieldLengths =
+    new ConcurrentHashMap<String,Long> ();
+  private final ConcurrentHashMap<String,Integer> docCounts =
+    new ConcurrentHashMap<String,Integer> ();
+
+  /**
+   *  Each thread's TermsEnum for each field, or null if the field
+   *  has no terms.
+   */
+  private final ThreadLocal<HashMap<String,TermsEnum>> termsEnums =
+    new ThreadLocal<HashMap<String,TermsEnum>> () {
+      protected HashMap<String,TermsEnum> initialValue () {
+        return new HashMap<String,TermsEnum> ();
+      }
+    };
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.
+   *  @param reader An open Lucene index.
+   *  @param indexPath The directory that contains the index.
+   *  @param docLengthStore The index's document length store.
+   *  @param externalIdTable The index's external id table, or null.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public IndexContext (IndexReader reader, String indexPath,
+                       DocLengthStore docLengthStore,
+                       ExternalIdTable externalIdTable) throws IOException {
+    this (reader, indexPath, docLengthStore, externalIdTable, null);
+  }
+
+  /**
+   *  Constructor.
+   *  @param reader An open Lucene index.
+   *  @param indexPath The directory that contains the index.
+   *  @param docLengthStore The index's document length store.
+   *  @param externalIdTable The index's external id table, or null.
+   *  @param previous Another context of the same index whose segment
+   *    document length stores are reused, or null.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private IndexContext (IndexReader reader, String indexPath,
+                        DocLengthStore docLengthStore,
+                        ExternalIdTable externalIdTable,
+                        IndexContext previous) throws IOException {
+    this.reader = reader;
+    this.indexPath = indexPath;
+    this.docLengthStore = docLengthStore;
+    this.externalIdTable = externalIdTable;
+    this.numDocs = reader.numDocs ();
+    this.parent = null;
+    this.docBase = 0;
+
+    List<IndexContext> leaves = new ArrayList<IndexContext> ();
+
+    for (LeafReaderContext leaf : reader.leaves ()) {
+      DocLengthStore leafStore = (previous != null) ?
+        previous.leaves.get (leaf.ord).docLengthStore :
+        new DocLengthStore (leaf.reader (), docLengthStore.getFields ());
+
+      leaves.add (new IndexContext (this, leaf, leafStore));
+    }
+
+    this.leaves = Collections.unmodifiableList (leaves);
+  }
+
+  /**
+   *  Constructor for one segment of an index.
+   *  @param parent The whole index.
+   *  @param leaf The segment.
+   *  @param docLengthStore The segment's document length store.
+   */
+  private IndexContext (IndexContext parent, LeafReaderContext leaf,
+                        DocLengthStore docLengthStore) {
+    this.reader = leaf.reader ();
+    this.indexPath = parent.indexPath;
+    this.docLengthStore = docLengthStore;
+    this.externalIdTable = null;
+    this.numDocs = parent.numDocs;
+    this.parent = parent;
+    this.docBase = leaf.docBase;
+    this.leaves = Collections.singletonList (this);
+  }
+
+  /**
+   *  Get the contexts of the index's segments, in docid order.  A
+   *  segment's list contains just the segment.
+   *  @return The segments.
+   */
+  public List<IndexContext> getLeaves () {
+    return this.leaves;
+  }
+
+  /**
+   *  Get the index docid of this context's docid 0.
+   *  @return The docid offset; 0 for a whole index.
+   */
+  public int getDocBase () {
+    return this.docBase;
+  }
+
+  /**
+   *  Copy the field lengths of the index and of each of its segments
+   *  into memory.  This changes the context's shared DocLengthStores,
+   *  not the context, and is safe while other threads use the context
+   *  (see DocLengthStore.preload).
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void preloadFieldLengths () throws IOException {
+
+    this.docLengthStore.preload ();
+
+    for (IndexContext leaf : this.leaves) {
+      if (leaf != this) {
+        leaf.docLengthStore.preload ();
+      }
+    }
+  }
+
+  /**
+   *  Get a copy of this context that uses an external id table.
+   *  @return The new context, or this context if it already has one.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public IndexContext withExternalIdTable () throws IOException {
+
+    if (this.externalIdTable != null) {
+      return this;
+    }
+
+    return new IndexContext (
+      this.reader, this.indexPath, this.docLengthStore,
+      ExternalIdTable.load (this.reader, this.indexPath, EXTERNAL_ID_FIELD),
+      this);
+  }
+
+  /**
+   *  Get the Lucene index.
+   *  @return The index.
+   */
+  public IndexReader getReader () {
+    return this.reader;
+  }
+
+  /**
+   *  Get the directory that contains the index.
+   *  @return The index path.
+   */
+  public String getIndexPath () {
+    return this.indexPath;
+  }
+
+  /**
+   *  Get the document length store.
+   *  @return The document length store.
+   */
+  public DocLengthStore getDocLengthStore () {
+    return this.docLengthStore;
+  }
+
+  /**
+   *  Get the specified attribute from the specified document.
+   *  @param attributeName Name of attribute
+   *  @param docid The internal docid in the lucene index.
+   *  @return the attribute value
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getAttribute (String attributeName, int docid)
+    throws IOException {
+
+    Document d = this.reader.document (docid);
+    return d.get (attributeName);
+  }
+
+  /**
+   *  Get the number of documents that contain the specified field.
+   *  @param fieldName the field name
+   *  @return the number of documents that contain the field
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getDocCount (String fieldName) throws IOException {
+
+    if (this.parent != null) {
+      return this.parent.getDocCount (fieldName);
+    }
+
+    Integer count = this.docCounts.get (fieldName);
+
+    if (count == null) {
+      count = this.reader.getDocCount (fieldName);
+      this.docCounts.put (fieldName, count);
+    }
+
+    return count;
+  }
+
+  /**
+   *  Get the external document id for a document specified by an
+   *  internal document id.
+   *  @param iid The internal document id of the document.
+   *  @return the external document id
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getExternalDocid (int iid) throws IOException {
+
+    if (this.externalIdTable != null) {
+      return this.externalIdTable.getExternalDocid (iid);
+    }
+
+    Document d = this.reader.document (iid);
+    return d.get (EXTERNAL_ID_FIELD);
+  }
+
+  /**
+   *  Get the ordinal of a document's external id, if the context has
+   *  an external id table.  Ordinals compare the same way as the
+   *  external ids.
+   *  @param iid The internal document id of the document.
+   *  @return the ordinal, or -1 if it isn't known.
+   */
+  public int getExternalDocidOrdinal (int iid) {
+    return (this.externalIdTable == null) ? -1 : this.externalIdTable.getOrdinal (iid);
+  }
+
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  @param fieldName Name of field to access lengths.
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getFieldLength (String fieldName, int docid) throws IOException {
+    return (int) this.docLengthStore.getDocLength (fieldName, docid);
+  }
+
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  @param fieldOrdinal The field ordinal, from getFieldOrdinal.
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getFieldLength (int fieldOrdinal, int docid) throws IOException {
+    return (int) this.docLengthStore.getDocLength (fieldOrdinal, docid);
+  }
+
+  /**
+   *  Get the lengths of the specified field in several documents.
+   *  @param fieldOrdinal The field ordinal, from getFieldOrdinal.
+   *  @param docids The internal docids in the Lucene index.
+   *  @param n The number of docids.
+   *  @param lengths Receives the length of the field in each document.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void getFieldLengths (int fieldOrdinal, int[] docids, int n,
+                               int[] lengths) throws IOException {
+    this.docLengthStore.getDocLengths (fieldOrdinal, docids, n, lengths);
+  }
+
+  /**
+   *  Get the ordinal of a field, for use with getFieldLength.
+   *  @param fieldName Name of field to access lengths.
+   *  @return the field ordinal, or -1 if the field isn't indexed.
+   */
+  public int getFieldOrdinal (String fieldName) {
+    return this.docLengthStore.getFieldOrdinal (fieldName);
+  }
+
+  /**
+   *  Get the smallest non-zero length of the specified field in any
+   *  document.
+   *  @param fieldName Name of field to access lengths.
+   *  @return the minimum length of the field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getMinFieldLength (String fieldName) throws IOException {
+    return (int) this.docLengthStore.getMinDocLength (fieldName);
+  }
+
+  /**
+   *  Get the internal document id for a document specified by its
+   *  external id.  If no such document exists, throw an exception.
+   *  @param externalId The external docid in the Lucene index.
+   *  @return iternal docid.
+   *  @throws Exception Could not read the internal document id from the index.
+   */
+  public int getInternalDocid (String externalId) throws Exception {
+
+    if (this.externalIdTable != null) {
+      return this.externalIdTable.getInternalDocid (externalId);
+    }
+
+    //  Look in each segment's term dictionary.
+
+    BytesRef termBytes = new BytesRef (externalId);
+    int df = 0;
+    int docid = -1;
+
+    for (IndexContext leaf : this.leaves) {
+      TermsEnum t = leaf.seekTerm (EXTERNAL_ID_FIELD, termBytes);
+
+      if (t != null) {
+        df += t.docFreq ();
+
+        if (docid < 0) {
+          PostingsEnum iList = t.postings (null, PostingsEnum.NONE);
+          iList.nextDoc ();
+          docid = leaf.docBase + iList.docID ();
+        }
+      }
+    }
+
+    if (df == 0) {
+      throw new Exception ("External id " + externalId + " not found.");
+    } else if (df > 1) {
+      throw new Exception ("Multiple matches for external id " + externalId);
+    }
+
+    return docid;
+  }
+
+  /**
+   *  Get the number of docids in the whole index, including the docids
+   *  of deleted documents.
+   *  @return The largest docid + 1.
+   */
+  public int getMaxDoc () {
+    return (this.parent != null) ? this.parent.getMaxDoc () : this.reader.maxDoc ();
+  }
+
+  /**
+   *  Get the total number of documents in the corpus.
+   *  @return The total number of documents.
+   */
+  public long getNumDocs () {
+    return this.numDocs;
+  }
+
+  /**
+   *  Get the total number of term occurrences contained in all
+   *  instances of the specified field in the corpus.
+   *  @param fieldName The field name.
+   *  @return The total number of term occurrence
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getSumOfFieldLengths (String fieldName) throws IOException {
+
+    if (this.parent != null) {
+      return this.parent.getSumOfFieldLengths (fieldName);
+    }
+
+    Long sum = this.sumOfFieldLengths.get (fieldName);
+
+    if (sum == null) {
+      sum = this.reader.getSumTotalTermFreq (fieldName);
+      this.sumOfFieldLengths.put (fieldName, sum);
+    }
+
+    return sum;
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The total number of term occurrence
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getTotalTermFreq (String fieldName, String term)
+    throws IOException {
+
+    if (this.parent != null) {
+      return this.parent.getTotalTermFreq (fieldName, term);
+    }
+
+    return this.reader.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+  }
+
+  /**
+   *  Position the calling thread's TermsEnum for a field on a term.
+   *  The TermsEnum is reused by the thread's next lookup in the same
+   *  field, so the caller must finish with it (e.g., by getting its
+   *  statistics and postings) before then.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The TermsEnum, or null if the term doesn't occur in the
+   *    field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public TermsEnum seekTerm (String fieldName, BytesRef term)
+    throws IOException {
+
+    HashMap<String,TermsEnum> enums = this.termsEnums.get ();
+    TermsEnum t = enums.get (fieldName);
+
+    if ((t == null) && (! enums.containsKey (fieldName))) {
+      Terms terms = MultiFields.getTerms (this.reader, fieldName);
+      t = (terms == null) ? null : terms.iterator ();
+      enums.put (fieldName, t);
+    }
+
+    if ((t == null) || (! t.seekExact (term))) {
+      return null;
+    }
+
+    return t;
+  }
+}
@@ -0,0 +1,264 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * MaxScore dynamic pruning for the Indri #AND and #WAND operators.
+ * <p>
+ * An Indri operator's score is a weighted geometric mean, which the
+ * operators compute in the log domain as a sum of per-argument
+ * contributions e_i * log(f_i), where f_i is the argument's score if it
+ * matches the document and its default score if it doesn't.  Each
+ * argument's contribution is bounded above by its largest possible score
+ * or default score, and, if the argument doesn't match, by its largest
+ * default score.  A document's bound is the sum of the default bounds
+ * plus the "gain" (bound minus default bound) of each argument that
+ * matches it.
+ * </p><p>
+ * As in QrySopSum, the arguments with the smallest gains are
+ * non-essential when a document that matches only them can't reach the
+ * threshold.  Candidates come from the essential arguments, and scoring
+ * stops as soon as the partial contributions plus the remaining bounds
+ * fall below the threshold.  A document that survives is scored with
+ * the operator's own arithmetic (see QrySop.getLogScore), so scores are
+ * unchanged.
+ * </p>
+ */
+class IndriMaxScore {
+
+    /**
+     * Log bounds are inflated by this absolute amount so that floating
+     * point rounding can never prune a document that would have entered
+     * the result list.
+     */
+    private static final double LOG_SLACK = 1e-9;
+
+    /**
+     * The exponent of each argument:  1/n for #AND, w_i/sum(w) for #WAND.
+     */
+    private final double[] exponents;
+
+    /**
+     * order lists the arguments by ascending gain; gainSums[k] is the
+     * (inflated) sum of the gains of order[0..k-1].  logBounds[i] and
+     * logDefaults[i] are argument i's bounds with and without a match.
+     */
+    private final int[] order;
+    private final double[] gainSums;
+    private final double[] logBounds;
+    private final double[] logDefaults;
+    private final double logDefaultSum;
+
+    /**
+     * Scratch space for the arguments' log scores, and the last document
+     * that was scored.
+     */
+    private double[] logScores;
+    private int scoredDocid = Qry.INVALID_DOCID;
+    private double scoredLogScore = 0;
+
+    private IndriMaxScore(double[] exponents, int[] order, double[] gainSums,
+                          double[] logBounds, double[] logDefaults, double logDefaultSum) {
+        this.exponents = exponents;
+        this.order = order;
+        this.gainSums = gainSums;
+        this.logBounds = logBounds;
+        this.logDefaults = logDefaults;
+        this.logDefaultSum = logDefaultSum;
+        this.logScores = new double[exponents.length];
+    }
+
+    /**
+     * Compute the bounds of an initialized operator's arguments.
+     *
+     * @param args      The operator's arguments.
+     * @param exponents The exponent of each argument.
+     * @param r         The retrieval model.
+     * @return The pruning state, or null if some argument can't be bounded.
+     * @throws IOException Error accessing the Lucene index
+     */
+    static IndriMaxScore create(List<Qry> args, double[] exponents, RetrievalModel r)
+            throws IOException {
+        int n = args.size();
+        final double[] gains = new double[n];
+        double[] logBounds = new double[n];
+        double[] logDefaults = new double[n];
+        double logDefaultSum = 0;
+        Integer[] sorted = new Integer[n];
+
+        for (int i = 0; i < n; i++) {
+            QrySop q = (QrySop) args.get(i);
+            double maxDefault = q.getMaxDefaultScore(r);
+            double max = Math.max(q.getMaxScore(r), maxDefault);
+
+            //  A default of 0 makes every score 0, and ties at the
+            //  threshold can still enter the result list.
+
+            if (!(maxDefault > 0) || Double.isInfinite(max) || Double.isNaN(max)) {
+                return null;
+            }
+            logBounds[i] = exponents[i] * Math.log(max);
+            logDefaults[i] = exponents[i] * Math.log(maxDefault);
+            logDefaultSum += logDefaults[i];
+            gains[i] = logBounds[i] - logDefaults[i];
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(gains[a], gains[b]);
+            }
+        });
+
+        int[] order = new int[n];
+        double[] gainSums = new double[n + 1];
+        for (int k = 0; k < n; k++) {
+            order[k] = sorted[k];
+            gainSums[k + 1] = gainSums[k] + gains[sorted[k]];
+        }
+        for (int k = 0; k <= n; k++) {
+            gainSums[k] += LOG_SLACK;
+        }
+        return new IndriMaxScore(exponents, order, gainSums, logBounds, logDefaults, logDefaultSum);
+    }
+
+    /**
+     * A copy with its own scratch space, for Qry.copy.
+     *
+     * @return The copy.
+     */
+    IndriMaxScore copy() {
+        IndriMaxScore c = new IndriMaxScore(this.exponents, this.order, this.gainSums,
+                this.logBounds, this.logDefaults, this.logDefaultSum);
+        c.scoredDocid = this.scoredDocid;
+        c.scoredLogScore = this.scoredLogScore;
+        return c;
+    }
+
+    /**
+     * Get the log score of a document that docIteratorHasMatch matched.
+     *
+     * @param docid The internal document id.
+     * @return The log of the score.
+     * @throws IllegalStateException The document wasn't matched by docIteratorHasMatch.
+     */
+    double getLogScore(int docid) {
+        if (docid != this.scoredDocid) {
+            throw new IllegalStateException("Document " + docid + " was not scored.");
+        }
+        return this.scoredLogScore;
+    }
+
+    /**
+     * Whether a document was matched (and scored) by docIteratorHasMatch.
+     *
+     * @param docid The internal document id.
+     * @return True if getLogScore knows the document's score.
+     */
+    boolean hasScore(int docid) {
+        return docid == this.scoredDocid;
+    }
+
+    /**
+     * Find the next document that can score at least threshold, score
+     * it, and cache it as the operator's match.
+     *
+     * @param op        The operator.
+     * @param r         The retrieval model.
+     * @param threshold The lowest score that can enter the result list.
+     * @return True if the operator matches, otherwise false.
+     * @throws UncheckedIOException Error accessing the Lucene index
+     */
+    boolean docIteratorHasMatch(QrySop op, RetrievalModel r, double threshold) {
+
+        if (op.docIteratorHasMatchCache()) {
+            return true;
+        }
+
+        List<Qry> args = op.args;
+        int n = args.size();
+        double logThreshold = Math.log(threshold);
+
+        //  Arguments order[0..p-1] are non-essential.  If every argument
+        //  is non-essential, no document can enter the result list.
+
+        int p = 0;
+        while (p < n && this.logDefaultSum + this.gainSums[p + 1] < logThreshold) {
+            p++;
+        }
+        if (p == n) {
+            return false;
+        }
+
+        try {
+            while (true) {
+
+                //  The candidate is the smallest docid of the essential arguments.
+
+                int docid = Qry.INVALID_DOCID;
+                for (int k = p; k < n; k++) {
+                    Qry q = args.get(this.order[k]);
+                    if (q.docIteratorHasMatch(r)) {
+                        int q_docid = q.docIteratorGetMatch();
+                        if (docid == Qry.INVALID_DOCID || q_docid < docid) {
+                            docid = q_docid;
+                        }
+                    }
+                }
+                if (docid == Qry.INVALID_DOCID) {
+                    return false;
+                }
+
+                //  Replace bounds with actual contributions, essential
+                //  arguments first, then non-essential arguments from the
+                //  largest gain down, and stop when the bound falls below
+                //  the threshold.  A non-essential argument's bound is its
+                //  gain over the default bounds.
+
+                double bound = this.logDefaultSum + this.gainSums[p];
+                for (int k = p; k < n; k++) {
+                    bound += this.logBounds[this.order[k]] - this.logDefaults[this.order[k]];
+                }
+
+                boolean pruned = false;
+                for (int k = n - 1; k >= 0; k--) {
+                    int i = this.order[k];
+                    QrySop q = (QrySop) args.get(i);
+                    if (k < p) {
+                        q.docIteratorAdvanceTo(docid);
+                    }
+                    this.logScores[i] = (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docid) ?
+                            q.getLogScore(r) : q.getLogDefaultScore(r, docid);
+                    bound += this.exponents[i] * this.logScores[i] - this.logBounds[i];
+                    if (bound + LOG_SLACK < logThreshold) {
+                        pruned = true;
+                        break;
+                    }
+                }
+
+                if (!pruned) {
+
+                    //  Add the contributions in argument order, as the
+                    //  operator's getLogScore does, so that the score is
+                    //  exactly the same.
+
+                    double logScore = 0.0;
+                    for (int i = 0; i < n; i++) {
+                        logScore += this.exponents[i] * this.logScores[i];
+                    }
+
+                    if (Math.exp(logScore) >= threshold) {
+                        this.scoredDocid = docid;
+                        this.scoredLogScore = logScore;
+                        op.docIteratorSetMatchCache(docid);
+                        return true;
+                    }
+                }
+
+                for (int k = p; k < n; k++) {
+                    args.get(this.order[k]).docIteratorAdvancePast(docid);
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
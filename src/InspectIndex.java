@@ -58,6 +58,7 @@ public class InspectIndex {
     public static void main(String[] args) throws IOException, Exception {
 
 	IndexReader reader = null;
+	String indexPath = null;
 
 	/*
 	 *  Opening the index first simplifies the processing of the
@@ -66,8 +67,9 @@ public class InspectIndex {
 	for (int i=0; i < args.length; i++) {
 	    if (("-index".equals (args[i])) &&
 		((i+1) < args.length)) {
+		indexPath = args[i+1];
 		reader = DirectoryReader.open (
-			     FSDirectory.open (Paths.get (args[i+1])));
+			     FSDirectory.open (Paths.get (indexPath)));
 
 		if (reader == null) {
 		    System.err.println ("Error:  Can't open index " +
@@ -120,7 +122,7 @@ public class InspectIndex {
 		break;
 	      };
 
-	      listInternalDocid(reader, args[i+1]);
+	      listInternalDocid(reader, indexPath, args[i+1]);
 
 	      i += 1;
 	    } else if ("-list-doc".equals(args[i])) {
@@ -304,7 +306,20 @@ public class InspectIndex {
     /*
      *  listInternalDocid.
      */
-    static void listInternalDocid (IndexReader reader, String externalId) throws Exception  {
+    static void listInternalDocid (IndexReader reader, String indexPath,
+				   String externalId) throws Exception  {
+
+      /*
+       *  Use the external id table next to the index, if it is current.
+       */
+      ExternalIdTable table =
+	ExternalIdTable.read (reader, ExternalIdTable.getPath (indexPath));
+
+      if (table != null) {
+	System.out.println ("External docid --> Internal docid: " +
+			    externalId + " --> " + table.getInternalDocid (externalId));
+	return;
+      }
 
       BytesRef termBytes = new BytesRef (externalId);
       Term term = new Term (externalIdField, termBytes);
@@ -13,11 +13,24 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in flat primitive arrays rather than as one
+ *  object per document, so that long inverted lists don't create
+ *  millions of small objects.  The n'th posting is described by
+ *  docids[n] and tfs[n]; its locations are stored in
+ *  positions[positionOffsets[n]] ... positions[positionOffsets[n+1]-1].
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The initial capacity of an inverted list whose size is not known
+   *  in advance.
+   */
+  private static final int DEFAULT_CAPACITY = 16;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -30,56 +43,42 @@ public class InvList {
    */
   public int df = 0;
 
+  /**
+   *  The largest term frequency of any posting in the list.
+   */
+  public int maxTf = 0;
+
   /**
    *  The field covered by the inverted list.
    */
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The internal ids of the documents that contain the term in the
+   *  specified field, in ascending order.  Only the first df entries
+   *  are valid.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  public int[] docids;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  Term frequencies:  The number of times the term occurs in the
+   *  specified field of each document.  Only the first df entries
+   *  are valid.
    */
-  public class DocPosting {
-
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
-
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
-
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  public int[] tfs;
 
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  The index in positions of the first location of each posting.
+   *  Entry df is the end of the last posting, so positionOffsets
+   *  always has at least df+1 valid entries.
+   */
+  public int[] positionOffsets;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
+  /**
+   *  The locations where the term occurs, concatenated across
+   *  postings.  Only the first ctf entries are valid.
+   */
+  public int[] positions;
 
   //  --------------- Methods ---------------------------------------
 
@@ -87,6 +86,7 @@ public class InvList {
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (DEFAULT_CAPACITY, DEFAULT_CAPACITY);
   }
 
   /**
@@ -95,6 +95,7 @@ public class InvList {
    */
   public InvList(String fieldString) {
     this.field = new String (fieldString);
+    this.allocate (DEFAULT_CAPACITY, DEFAULT_CAPACITY);
   }
 
   /**
@@ -104,23 +105,44 @@ public class InvList {
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this (Idx.getContext (), termString, fieldString);
+  }
+
+  /**
+   *  Get an inverted list from the specified index.
+   *  @param index The index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(IndexContext index, String termString, String fieldString)
+    throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
     this.field = new String (fieldString);
 
-    //  Prepare to access the index.
+    //  Prepare to access the index.  One term lookup provides the
+    //  statistics and the postings.
 
-    BytesRef termBytes = new BytesRef(termString);
-    Term term = new Term(fieldString, termBytes);
+    TermsEnum t = index.seekTerm (fieldString, new BytesRef(termString));
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    if ((t == null) || (t.docFreq() < 1)) {
+      this.allocate (0, 0);
       return;
+    }
+
+    //  The index statistics give the exact size of the list (unless
+    //  documents were deleted), so the arrays are allocated just once.
+
+    int indexDf = t.docFreq();
+    long indexCtf = t.totalTermFreq();
+    this.allocate (indexDf,
+                   (int) Math.min (Math.max (indexCtf, indexDf), Integer.MAX_VALUE - 8));
 
     //  Lookup the inverted list.
 
-    PostingsEnum iList =
-      MultiFields.getTermPositionsEnum (Idx.INDEXREADER, fieldString, termBytes); 
+    PostingsEnum iList = t.postings (null, PostingsEnum.POSITIONS);
 
     //  Copy from Lucene inverted list format to our inverted list
     //  format. This is a little inefficient, but allows query
@@ -130,14 +152,51 @@ public class InvList {
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+
+      this.ensureCapacity (this.df + 1, this.ctf + tf);
+      this.docids[this.df] = iList.docID();
+      this.tfs[this.df] = tf;
 
       for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+        this.positions[this.ctf + j] = iList.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
       this.df++;
       this.ctf += tf;
+      this.maxTf = Math.max (this.maxTf, tf);
+      this.positionOffsets[this.df] = this.ctf;
+    }
+  }
+
+  /**
+   *  Allocate the posting arrays.
+   *  @param docCapacity The number of postings to make room for.
+   *  @param locCapacity The number of locations to make room for.
+   */
+  private void allocate (int docCapacity, int locCapacity) {
+    this.docids = new int[docCapacity];
+    this.tfs = new int[docCapacity];
+    this.positionOffsets = new int[docCapacity + 1];
+    this.positions = new int[locCapacity];
+  }
+
+  /**
+   *  Grow the posting arrays, if necessary, so that they can hold
+   *  the specified number of postings and locations.
+   *  @param docCapacity The number of postings required.
+   *  @param locCapacity The number of locations required.
+   */
+  private void ensureCapacity (int docCapacity, int locCapacity) {
+
+    if (docCapacity > this.docids.length) {
+      int n = Math.max (docCapacity, 2 * this.docids.length);
+      this.docids = Arrays.copyOf (this.docids, n);
+      this.tfs = Arrays.copyOf (this.tfs, n);
+      this.positionOffsets = Arrays.copyOf (this.positionOffsets, n + 1);
+    }
+
+    if (locCapacity > this.positions.length) {
+      int n = Math.max (locCapacity, 2 * this.positions.length);
+      this.positions = Arrays.copyOf (this.positions, n);
     }
   }
 
@@ -145,33 +204,130 @@ public class InvList {
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
    *  @param docid The internal document id of the posting.
-   *  @param positions A list of positions where the term occurs.
+   *  @param locations An array whose first tf entries are the
+   *    positions where the term occurs.  The array is copied, so the
+   *    caller may reuse it.
+   *  @param tf The number of valid entries in locations.
    *  @return true if the posting was added successfully, otherwise false.
    */
-  public boolean appendPosting (int docid, List<Integer> positions) {
-    
+  public boolean appendPosting (int docid, int[] locations, int tf) {
+
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    System.arraycopy (locations, 0, this.positions, this.ctf, tf);
 
-    this.postings.add (p);
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
+    this.maxTf = Math.max (this.maxTf, tf);
+    this.positionOffsets[this.df] = this.ctf;
     return true;
   }
 
+  /**
+   *  Find the first posting at or after index from whose docid is
+   *  &gt;= docid.  Galloping (exponential then binary) search makes
+   *  the cost logarithmic in the distance skipped, so a rare term can
+   *  skip through a frequent term's list quickly.
+   *  @param from The index of the posting to start searching from.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid (int from, int docid) {
+    return InvList.gallop (this.docids, from, this.df, docid);
+  }
+
+  /**
+   *  Find the first location at or after index from in the n'th
+   *  posting that is &gt; loc.
+   *  @param n The index of the posting.
+   *  @param from The index of the location to start searching from.
+   *  @param loc The location to advance beyond.
+   *  @return The index of the location within the posting, or tf if
+   *    there is none.
+   */
+  public int findPositionPast (int n, int from, int loc) {
+    int start = this.positionOffsets[n];
+    int end = start + this.tfs[n];
+
+    if (loc == Integer.MAX_VALUE) {
+      return this.tfs[n];
+    }
+
+    return InvList.gallop (this.positions, start + from, end, loc + 1) - start;
+  }
+
+  /**
+   *  Galloping search of a sorted range of an array.
+   *  @param a An array sorted in ascending order.
+   *  @param from The first index of the range.
+   *  @param to The index after the last index of the range.
+   *  @param key The value to search for.
+   *  @return The first index i in [from, to) with a[i] &gt;= key, or to
+   *    if there is none.
+   */
+  private static int gallop (int[] a, int from, int to, int key) {
+
+    if ((from >= to) || (a[from] >= key)) {
+      return from;
+    }
+
+    //  Invariant:  a[lo] < key.  Double the step until a[hi] >= key or
+    //  the end of the range is reached.
+
+    int lo = from;
+    int step = 1;
+    int hi = from + step;
+
+    while ((hi < to) && (a[hi] < key)) {
+      lo = hi;
+      step <<= 1;
+      hi = (to - lo > step) ? lo + step : to;
+    }
+
+    if (hi > to) {
+      hi = to;
+    }
+
+    //  Binary search in (lo, hi].
+
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+
+      if (a[mid] < key) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return hi;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
    *  @param docid The index of the requested document.
    *  @return The internal document id.
    */
   public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+    return this.docids[docid];
+  }
+
+  /**
+   *  Get the i'th location in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param i The index of the requested location within the document.
+   *  @return The location.
+   */
+  public int getPosition(int n, int i) {
+    return this.positions[this.positionOffsets[n] + i];
   }
 
   /**
@@ -180,7 +336,7 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
   }
 
   /**
@@ -191,11 +347,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.docids[i] + ", tf: "
+          + this.tfs[i] + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.tfs[i]; j++) {
+        System.out.print(this.getPosition(i, j) + " ");
       }
 
       System.out.println();
@@ -0,0 +1,220 @@
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ *  Compares the two docIterator protocols on the queries in a query
+ *  file (see QueryBenchmark).  Each query is evaluated DAAT with its
+ *  compiled scorer (see QrySop.compile), once with the
+ *  docIteratorHasMatch protocol:
+ *  <pre>
+ *    while (q.docIteratorHasMatch (r)) {
+ *      int docid = q.docIteratorGetMatch ();
+ *      ...
+ *      q.docIteratorAdvancePast (docid);
+ *    }
+ *  </pre>
+ *  and once with nextDoc, which moves the iterator and returns the
+ *  match in one call.  For example:
+ *  <pre>
+ *    java -cp ".:lucene-6.6.0/*" IterationBenchmark -index INDEX_PATH
+ *        -queries QUERY_FILE -model bm25
+ *  </pre>
+ *  <p>
+ *  With -inlining true, the benchmark also checks what the JIT inlines
+ *  into each loop.  It runs itself once per loop in a child JVM with
+ *  -XX:+PrintInlining for that loop only, and prints the loop's last
+ *  inlining tree and the calls to query operators that were not
+ *  inlined.
+ *  </p>
+ *  <p>
+ *  QryEval.processQry uses the nextDoc loop.
+ *  </p>
+ */
+public class IterationBenchmark extends QueryBenchmark {
+
+  //  --------------- Methods ---------------------------------------
+
+  protected String name (int variant) {
+    return (variant == 0) ? "docIteratorHasMatch" : "nextDoc";
+  }
+
+  /**
+   *  Evaluate a query with the docIteratorHasMatch protocol (variant
+   *  0) or with nextDoc (variant 1).  Each protocol has its own loop
+   *  method, so the JIT compiles and profiles them separately.
+   */
+  protected void evaluate (QrySop q, RetrievalModel model, int variant,
+                           double[] result) throws IOException {
+
+    if (variant == 0) {
+      hasMatchLoop (q, model, result);
+    } else {
+      nextDocLoop (q, model, result);
+    }
+  }
+
+  /**
+   *  Evaluate a query with the docIteratorHasMatch protocol.
+   *  @param q An initialized query.
+   *  @param model The retrieval model.
+   *  @param result Receives the number of matches and the sum of
+   *    their scores.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void hasMatchLoop (QrySop q, RetrievalModel model,
+                                    double[] result) throws IOException {
+
+    QryScorer scorer = q.compile (model);
+
+    while (q.docIteratorHasMatch (model)) {
+      int docid = q.docIteratorGetMatch ();
+      result[0] ++;
+      result[1] += scorer.score (docid);
+      q.docIteratorAdvancePast (docid);
+    }
+  }
+
+  /**
+   *  Evaluate a query with nextDoc.
+   *  @param q An initialized query.
+   *  @param model The retrieval model.
+   *  @param result Receives the number of matches and the sum of
+   *    their scores.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void nextDocLoop (QrySop q, RetrievalModel model,
+                                   double[] result) throws IOException {
+
+    QryScorer scorer = q.compile (model);
+
+    for (int docid = q.nextDoc (model);
+         docid != Qry.NO_MORE_DOCS;
+         docid = q.nextDoc (model)) {
+      result[0] ++;
+      result[1] += scorer.score (docid);
+    }
+  }
+
+  /**
+   *  Run the benchmark in a child JVM that prints what the JIT inlines
+   *  into one loop, and report the loop's last inlining tree.
+   *  @param loop "hasMatchLoop" or "nextDocLoop".
+   *  @param args The benchmark's command line arguments.
+   *  @throws Exception Error running the child JVM.
+   */
+  private static void checkInlining (String loop, List<String> args)
+    throws Exception {
+
+    List<String> command = new ArrayList<String> ();
+
+    command.add (System.getProperty ("java.home") + File.separator + "bin" +
+                 File.separator + "java");
+    command.add ("-XX:+UnlockDiagnosticVMOptions");
+    command.add ("-XX:CompileCommand=quiet");
+    command.add ("-XX:CompileCommand=option,IterationBenchmark::" + loop + ",PrintInlining");
+    command.add ("-cp");
+    command.add (System.getProperty ("java.class.path"));
+    command.add ("IterationBenchmark");
+    command.addAll (args);
+
+    //  Each line of a tree is "@ bci method (size)   decision".  A tree
+    //  starts again when a line at the top level has a bci no larger
+    //  than the previous top-level line's.
+
+    Pattern call = Pattern.compile ("@ (\\d+)\\s+(\\S+) .*?\\)\\s+(.*)$");
+    Pattern operator =
+      Pattern.compile ("^(Qry\\w*|InvList|IndexContext|DocLengthStore)(\\$\\w+)?::.*");
+    List<String> tree = new ArrayList<String> ();
+    int compilations = 0;
+    int top = Integer.MAX_VALUE;
+    int lastBci = Integer.MAX_VALUE;
+
+    Process child = new ProcessBuilder (command).redirectErrorStream (true).start ();
+
+    try (BufferedReader input =
+           new BufferedReader (new InputStreamReader (child.getInputStream ()))) {
+      String line;
+
+      while ((line = input.readLine ()) != null) {
+        Matcher m = call.matcher (line);
+
+        if (! m.find ()) {
+          continue;
+        }
+
+        int indent = line.indexOf ('@');
+        int bci = Integer.parseInt (m.group (1));
+
+        if (indent <= top) {
+          if ((indent < top) || (bci <= lastBci)) {
+            tree.clear ();
+            compilations ++;
+          }
+
+          top = indent;
+          lastBci = bci;
+        }
+
+        tree.add (line);
+      }
+    }
+
+    if (child.waitFor () != 0) {
+      throw new IllegalStateException ("The child JVM failed: " + command);
+    }
+
+    System.out.println (loop + ", the last of " + compilations + " compilations:");
+
+    List<String> notInlined = new ArrayList<String> ();
+
+    for (String line : tree) {
+      System.out.println (line);
+
+      Matcher m = call.matcher (line);
+
+      if (m.find () && operator.matcher (m.group (2)).matches () &&
+          ! m.group (3).startsWith ("inline") && ! m.group (3).equals ("accessor")) {
+        notInlined.add ("  " + m.group (2) + ":  " + m.group (3));
+      }
+    }
+
+    System.out.println ("Calls to query operators that " + loop + " doesn't inline:");
+
+    for (String line : notInlined) {
+      System.out.println (line);
+    }
+
+    if (notInlined.isEmpty ()) {
+      System.out.println ("  none");
+    }
+
+    System.out.println ();
+  }
+
+  /**
+   *  @param args The command line arguments; see QueryBenchmark, and
+   *    -inlining true|false.
+   *  @throws Exception Error accessing the index or the query file.
+   */
+  public static void main (String[] args) throws Exception {
+
+    List<String> benchmarkArgs = new ArrayList<String> ();
+    boolean inlining = false;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-inlining".equals (args[i]) && (i + 1 < args.length)) {
+        inlining = Boolean.parseBoolean (args[++i]);
+      } else {
+        benchmarkArgs.add (args[i]);
+      }
+    }
+
+    if (inlining) {
+      checkInlining ("hasMatchLoop", benchmarkArgs);
+      checkInlining ("nextDocLoop", benchmarkArgs);
+    } else {
+      new IterationBenchmark ().run (benchmarkArgs.toArray (new String[0]));
+    }
+  }
+}
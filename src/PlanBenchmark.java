@@ -0,0 +1,73 @@
+import java.io.*;
+
+/**
+ *  Compares query plans (see QryPlan) with the interpreted Qry tree
+ *  and with the scorer trees (see QrySop.compile) on the queries in a
+ *  query file (see QueryBenchmark).  Each query is evaluated DAAT with
+ *  nextDoc three times:  scored by the query's own getScore, by its
+ *  scorer tree, and by its plan.  Each round also reports the number
+ *  of query shapes that have plans.  For example:
+ *  <pre>
+ *    java -cp ".:lucene-6.6.0/*" PlanBenchmark -index INDEX_PATH
+ *        -queries QUERY_FILE -model indri
+ *  </pre>
+ *  Queries are wrapped in the model's default operator, so a file of
+ *  sequential dependence model queries, one
+ *  #wand (w #and (...) w #and (#near/1 ...) w #and (#window/8 ...))
+ *  per line, is evaluated with the SDM shape.
+ */
+public class PlanBenchmark extends QueryBenchmark {
+
+  //  --------------- Methods ---------------------------------------
+
+  @Override
+  protected int variants () {
+    return 3;
+  }
+
+  protected String name (int variant) {
+    return (variant == 0) ? "Qry tree" : (variant == 1) ? "scorer trees" : "plans";
+  }
+
+  /**
+   *  Evaluate a query DAAT, scored by the query's getScore (variant 0),
+   *  by its scorer tree (variant 1), or by its plan (variant 2).
+   *  Compiling the query is timed.
+   */
+  protected void evaluate (QrySop q, RetrievalModel model, int variant,
+                           double[] result) throws IOException {
+
+    if (variant == 0) {
+      for (int docid = q.nextDoc (model);
+           docid != Qry.NO_MORE_DOCS;
+           docid = q.nextDoc (model)) {
+        result[0] ++;
+        result[1] += q.getScore (model);
+      }
+      return;
+    }
+
+    QryPlan.setEnabled (variant == 2);
+    QryScorer scorer = QryPlan.compile (q, model);
+
+    for (int docid = q.nextDoc (model);
+         docid != Qry.NO_MORE_DOCS;
+         docid = q.nextDoc (model)) {
+      result[0] ++;
+      result[1] += scorer.score (docid);
+    }
+  }
+
+  @Override
+  protected String report () {
+    return ", " + QryPlan.size () + " shapes";
+  }
+
+  /**
+   *  @param args The command line arguments; see QueryBenchmark.
+   *  @throws Exception Error accessing the index or the query file.
+   */
+  public static void main (String[] args) throws Exception {
+    new PlanBenchmark ().run (args);
+  }
+}
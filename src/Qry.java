@@ -22,10 +22,24 @@ import java.util.*;
  *    RetrievalModel r = new RetrievalModelUnrankedBoolean ();
  *    q.initialize (r);
  * 
+ *    for (int docid = q.nextDoc (r);
+ *         docid != Qry.NO_MORE_DOCS;
+ *         docid = q.nextDoc (r)) {
+ *      double score = ((QrySop) q).getScore (model);
+ *      System.out.println ("internal docid: " + docid + ", score: " score);
+ *    }
+ *  </pre>
+ *  <p>
+ *  nextDoc and advance, in the style of Lucene's DocIdSetIterator,
+ *  are the iteration protocol:  each call moves the iterator and
+ *  returns the matching docid.  Each query operator implements it
+ *  with docIteratorSeek (and, if it can step more cheaply,
+ *  docIteratorNext).  The older protocol is derived from it:
+ *  </p>
+ *  <pre>
  *    while (q.docIteratorHasMatch (r)) {
  *      int docid = q.docIteratorGetMatch ();
  *      double score = ((QrySop) q).getScore (model);
- *      System.out.println ("internal docid: " + docid + ", score: " score);
  *      q.docIteratorAdvancePast (docid);
  *    }
  *  </pre>
@@ -46,12 +60,15 @@ import java.util.*;
  *  </p><p>
  *  The docIterator for query operators in the QrySop hierarchy iterates
  *  over a virtual list.  The next document id is determined dynamically
- *  when hasMatch is called.  Thus, the iterator needs to be part of
- *  the query operator, because different query operators may have
- *  different strategies for determining what matches and how scores
- *  are calculated.  When hasMatch identifies a match, the match is
- *  cached so that it can be accessed efficiently by getMatch and
- *  getScore methods.
+ *  from the arguments' positions when the iterator is moved.  Thus, the
+ *  iterator needs to be part of the query operator, because different
+ *  query operators may have different strategies for determining what
+ *  matches and how scores are calculated.  The match is stored in the
+ *  operator, so a parent reads an argument's position (docID) without
+ *  a call, and only moves the arguments that are behind its target.
+ *  The older docIteratorAdvance methods don't take a retrieval model,
+ *  so they only record the target; the iterator moves to it the next
+ *  time that docIteratorHasMatch is called.
  *  </p><p>
  *  The inverted lists of query operators in the QryIop hierarchy are
  *  materialized when the query operator is initialized.  It is not
@@ -66,7 +83,7 @@ import java.util.*;
  *  query evaluation, which reduces computational efficiency.
  *  </p>
  */
-public abstract class Qry {
+public abstract class Qry implements Cloneable {
 
   //  --------------- Constants and variables ---------------------
 
@@ -75,6 +92,12 @@ public abstract class Qry {
    */
    public static final int INVALID_DOCID = Integer.MIN_VALUE;
 
+  /**
+   *  The document id that nextDoc and advance return when the
+   *  iterator is exhausted.  It is larger than any real document id.
+   */
+  public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
   /**
    *  The arguments to this query operator.  The TERM query operator
    *  has 0 arguments.  The SCORE query operator has 1 argument.  All
@@ -92,14 +115,25 @@ public abstract class Qry {
   private String displayName = new String ("Unnamed");
 
   /**
-   *  docIteratorHasMatch caches the matching docid so that
-   *  docIteratorGetMatch and getScore don't have to recompute it.
+   *  docIteratorDoc is the document that the iterator is on:  -1
+   *  before it is positioned, then a match, and NO_MORE_DOCS when it
+   *  is exhausted.  docIteratorTarget is the smallest docid that the
+   *  iterator may be on.  nextDoc and advance keep docIteratorDoc at
+   *  or after it; docIteratorAdvancePast and docIteratorAdvanceTo only
+   *  raise it, and docIteratorHasMatch then moves the iterator.
    */
-  private int docIteratorMatchCache = Qry.INVALID_DOCID;
+  private int docIteratorDoc = -1;
+  private int docIteratorTarget = 0;
   
   private boolean matchStored = false;	// Operators can cache matches
   private int matchingDocid;
 
+  /**
+   *  The index that the query operator is evaluated against.  It is
+   *  set by initialize.
+   */
+  protected IndexContext index = null;
+
   //  --------------- Methods ---------------------------------------
 
   /**
@@ -180,187 +214,305 @@ public abstract class Qry {
        this.getClass().getName());
   }
 
+  //  --------------- docIterator:  nextDoc and advance -------------
+
   /**
-   *  Advance the internal document iterator beyond the specified
-   *  document.
-   *  @param docid An internal document id.
+   *  Advance the iterator to the next match after the current one (or
+   *  to the first match, the first time), and return it.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The internal id of the match, or NO_MORE_DOCS.
    */
-  public void docIteratorAdvancePast (int docid) {
+  public final int nextDoc (RetrievalModel r) {
 
-      for (Qry q_i: this.args) {
-        q_i.docIteratorAdvancePast (docid);
-      }
+    int docid = this.docIteratorDoc;
 
-    this.docIteratorClearMatchCache ();
+    if (docid == Qry.NO_MORE_DOCS) {
+      return docid;
     }
 
+    //  Not positioned yet, or docIteratorAdvanceTo set a target.
+
+    if (docid < this.docIteratorTarget) {
+      this.docIteratorDoc = this.docIteratorSeek (r, this.docIteratorTarget);
+    } else {
+      this.docIteratorTarget = docid + 1;
+      this.docIteratorDoc = this.docIteratorNext (r);
+    }
+
+    return this.docIteratorDoc;
+  }
+
   /**
-   *  Advance the internal document iterator to the specified
-   *  document, or beyond if it doesn't.
-   *  @param docid An internal document id.
+   *  Advance the iterator to the first match at or after a document,
+   *  and return it.  If the current match is at or after the
+   *  document, the iterator doesn't move.
+   *  @param r The retrieval model that determines what is a match
+   *  @param target An internal document id.
+   *  @return The internal id of the match, or NO_MORE_DOCS.
    */
-  public void docIteratorAdvanceTo (int docid) {
-    
-    for (Qry q_i: this.args) {
-      q_i.docIteratorAdvanceTo (docid);
+  public final int advance (RetrievalModel r, int target) {
+
+    if (target < this.docIteratorTarget) {
+      target = this.docIteratorTarget;
     }
-    
-    this.docIteratorClearMatchCache ();
+
+    if (this.docIteratorDoc >= target) {
+      return this.docIteratorDoc;
+    }
+
+    this.docIteratorTarget = target;
+    this.docIteratorDoc = this.docIteratorSeek (r, target);
+    return this.docIteratorDoc;
   }
 
   /**
-   *  Clear the docIterator's matching docid cache.  The cache should
-   *  be cleared whenever a docIterator is advanced.
+   *  Get the document id that nextDoc or advance returned last.
+   *  @return The internal document id, NO_MORE_DOCS, or -1 if the
+   *    iterator hasn't been positioned yet.
    */
-  private void docIteratorClearMatchCache () {
-    this.docIteratorMatchCache = Qry.INVALID_DOCID;
+  public final int docID () {
+    return this.docIteratorDoc;
   }
 
   /**
-   *  Return the id of the document that the iterator points to now.
-   *  Use docIteratorHasMatch to determine whether the iterator
-   *  currently points to a document.  If the iterator doesn't point
-   *  to a document, an invalid document id is returned.
-   *  @return The internal id of the current document.
+   *  Move the iterator to the first match at or after a document.
+   *  advance calls this method when the iterator is before target.
+   *  @param r The retrieval model that determines what is a match
+   *  @param target An internal document id.
+   *  @return The internal id of the match, or NO_MORE_DOCS.
    */
-  public int docIteratorGetMatch () {
-    if (this.docIteratorHasMatchCache ()) {
-      return this.docIteratorMatchCache;
-    } else {
-      throw new IllegalStateException("No matching docid was cached.");
-    }
-  }
+  protected abstract int docIteratorSeek (RetrievalModel r, int target);
 
   /**
-   *  Indicates whether the query has a match.
+   *  Move the iterator to the first match after the current one.
+   *  nextDoc calls this method when the iterator is on a match.
+   *  Query operators that can step more cheaply than they can seek
+   *  override it.
    *  @param r The retrieval model that determines what is a match
-   *  @return True if the query matches, otherwise false.
+   *  @return The internal id of the match, or NO_MORE_DOCS.
    */
-  public abstract boolean docIteratorHasMatch (RetrievalModel r);
+  protected int docIteratorNext (RetrievalModel r) {
+    return this.docIteratorSeek (r, this.docIteratorDoc + 1);
+  }
 
   /**
-   *  An instantiation of docIteratorHasMatch that is true if the
-   *  query has a document that matches all query arguments; some
-   *  subclasses may choose to use this implementation.  
+   *  An instantiation of docIteratorSeek that finds the first document
+   *  at or after target that matches all query arguments; some
+   *  subclasses may choose to use this implementation.
    *  @param r The retrieval model that determines what is a match
-   *  @return True if the query matches, otherwise false.
+   *  @param target An internal document id.
+   *  @return The internal id of the match, or NO_MORE_DOCS.
    */
-  protected boolean docIteratorHasMatchAll (RetrievalModel r) {
+  protected int docIteratorSeekAll (RetrievalModel r, int target) {
 
-    boolean matchFound = false;
+    Qry q_1st = this.args.get (0);
+    int docid_0 = target;
 
     // Keep trying until a match is found or no match is possible.
 
-    while (! matchFound) {
+    while (true) {
 
       // Get the docid of the first query argument.
-      
-      Qry q_1st = this.args.get (0);
 
-      if (! q_1st.docIteratorHasMatch (r)) {
-	return false;
-      }
+      docid_0 = Qry.docIteratorSeekArg (q_1st, r, docid_0);
 
-      int docid_0 = q_1st.docIteratorGetMatch ();
+      if (docid_0 == Qry.NO_MORE_DOCS) {
+        return docid_0;
+      }
 
       // Other query arguments must match the docid of the first query
       // argument.
-      
-      matchFound = true;
 
-      for (int i=1; i<this.args.size(); i++) {
-	Qry q_i = this.args.get(i);
-
-	q_i.docIteratorAdvanceTo (docid_0);
+      boolean matchFound = true;
 
-	if (! q_i.docIteratorHasMatch (r)) {	// If any argument is exhausted
-	  return false;				// there are no more matches.
-	}
+      for (int i=1; i<this.args.size(); i++) {
+        int docid_i = Qry.docIteratorSeekArg (this.args.get(i), r, docid_0);
 
-	int docid_i = q_i.docIteratorGetMatch ();
+        if (docid_i == Qry.NO_MORE_DOCS) {	// If any argument is exhausted
+          return docid_i;			// there are no more matches.
+        }
 
-	if (docid_0 != docid_i) {	// docid_0 can't match.  Try again.
-	  q_1st.docIteratorAdvanceTo (docid_i);
-	  matchFound = false;
-	  break;
-	}
+        if (docid_0 != docid_i) {	// docid_0 can't match.  Try again.
+          docid_0 = docid_i;
+          matchFound = false;
+          break;
+        }
       }
 
       if (matchFound) {
-        docIteratorSetMatchCache (docid_0);
+        return docid_0;
       }
     }
+  }
 
-    return true;
+  /**
+   *  An instantiation of docIteratorSeek that finds the first document
+   *  at or after target that matches the first query argument; some
+   *  subclasses may choose to use this implementation.
+   *  @param r The retrieval model that determines what is a match
+   *  @param target An internal document id.
+   *  @return The internal id of the match, or NO_MORE_DOCS.
+   */
+  protected int docIteratorSeekFirst (RetrievalModel r, int target) {
+    return Qry.docIteratorSeekArg (this.args.get(0), r, target);
   }
 
   /**
-   *  An instantiation of docIteratorHasMatch that is true if the
-   *  query has a document that matches the first query argument;
-   *  some subclasses may choose to use this implementation.
+   *  An instantiation of docIteratorSeek that finds the first document
+   *  at or after target that matches at least one query argument; some
+   *  subclasses may choose to use this implementation.
    *  @param r The retrieval model that determines what is a match
-   *  @return True if the query matches, otherwise false.
+   *  @param target An internal document id.
+   *  @return The internal id of the match, or NO_MORE_DOCS.
    */
-  protected boolean docIteratorHasMatchFirst (RetrievalModel r) {
+  protected int docIteratorSeekMin (RetrievalModel r, int target) {
 
-    Qry q_1st = this.args.get(0);
+    int minDocid = Qry.NO_MORE_DOCS;
 
-    if (q_1st.docIteratorHasMatch (r)) {
-      int docid = q_1st.docIteratorGetMatch ();
-      this.docIteratorSetMatchCache (docid);
-      return true;
-    } else {
-      return false;
+    for (int i=0; i<this.args.size(); i++) {
+      int q_iDocid = Qry.docIteratorSeekArg (this.args.get(i), r, target);
+
+      if (q_iDocid < minDocid) {
+        minDocid = q_iDocid;
+      }
     }
+
+    return minDocid;
   }
 
   /**
-   *  An instantiation of docIteratorHasMatch that is true if the
-   *  query has a document that matches at least one query argument;
-   *  the match is the smallest docid to match; some subclasses may
-   *  choose to use this implementation.
+   *  Move a query argument to its first match at or after target.  An
+   *  argument that is already there is read without a call, and one
+   *  that is on the document before target steps with
+   *  docIteratorNext.  This is nextDoc and advance written out for an
+   *  argument:  it updates the argument's position itself and calls
+   *  the argument's docIteratorSeek or docIteratorNext directly, so a
+   *  query tree doesn't re-enter nextDoc or advance at each level,
+   *  and the JIT can inline the whole tree into the caller's loop.
+   *  @param q The query argument.
    *  @param r The retrieval model that determines what is a match
-   *  @return True if the query matches, otherwise false.
+   *  @param target An internal document id.
+   *  @return The internal id of the argument's match, or NO_MORE_DOCS.
    */
-  protected boolean docIteratorHasMatchMin (RetrievalModel r) {
+  private static int docIteratorSeekArg (Qry q, RetrievalModel r, int target) {
 
-    int minDocid = Qry.INVALID_DOCID;
-
-    for (int i=0; i<this.args.size(); i++) {
-      Qry q_i = this.args.get(i);
+    int docid = q.docIteratorDoc;
 
-      if (q_i.docIteratorHasMatch (r)) {
-        int q_iDocid = q_i.docIteratorGetMatch ();
+    if (docid >= q.docIteratorTarget) {
+      if (docid >= target) {
+        return docid;
+      }
 
-        if ((minDocid > q_iDocid) ||
-            (minDocid == Qry.INVALID_DOCID)) {
-          minDocid = q_iDocid;
-        }
+      if (docid == target - 1) {
+        q.docIteratorTarget = target;
+        q.docIteratorDoc = q.docIteratorNext (r);
+        return q.docIteratorDoc;
       }
+    } else if (target < q.docIteratorTarget) {
+
+      //  Not positioned yet, or docIteratorAdvanceTo set a later target.
+
+      target = q.docIteratorTarget;
+    }
+
+    q.docIteratorTarget = target;
+    q.docIteratorDoc = q.docIteratorSeek (r, target);
+    return q.docIteratorDoc;
+  }
+
+  //  --------------- docIterator:  hasMatch and getMatch ------------
+
+  /**
+   *  Advance the internal document iterator beyond the specified
+   *  document.
+   *  @param docid An internal document id.
+   */
+  public void docIteratorAdvancePast (int docid) {
+    this.docIteratorAdvanceTo ((docid == Integer.MAX_VALUE) ?
+                               Qry.NO_MORE_DOCS : docid + 1);
+  }
+
+  /**
+   *  Advance the internal document iterator to the specified
+   *  document, or beyond if it doesn't.  The iterator moves the next
+   *  time that docIteratorHasMatch is called.
+   *  @param docid An internal document id.
+   */
+  public void docIteratorAdvanceTo (int docid) {
+    if (docid > this.docIteratorTarget) {
+      this.docIteratorTarget = docid;
+    }
+  }
+
+  /**
+   *  Advance the arguments' iterators to the specified document, or
+   *  beyond if it doesn't, with docIteratorAdvanceTo.  Query operators
+   *  whose docIteratorSeek is written in terms of docIteratorHasMatch
+   *  use it to move their arguments.
+   *  @param docid An internal document id.
+   */
+  protected void docIteratorAdvanceArgsTo (int docid) {
+    for (int i=0; i<this.args.size(); i++) {
+      this.args.get(i).docIteratorAdvanceTo (docid);
     }
+  }
 
-    if (minDocid != Qry.INVALID_DOCID) {
-      docIteratorSetMatchCache (minDocid);
-      return true;
+  /**
+   *  Forget the iterator's position, so that the next match is found
+   *  from the arguments' (or the inverted list's) current positions.
+   */
+  protected void docIteratorClearMatchCache () {
+    this.docIteratorDoc = -1;
+    this.docIteratorTarget = 0;
+  }
+
+  /**
+   *  Return the id of the document that the iterator points to now.
+   *  Use docIteratorHasMatch to determine whether the iterator
+   *  currently points to a document.
+   *  @return The internal id of the current document.
+   *  @throws IllegalStateException The iterator isn't on a match.
+   */
+  public final int docIteratorGetMatch () {
+    if (this.docIteratorHasMatchCache ()) {
+      return this.docIteratorDoc;
     } else {
-      return false;
+      throw new IllegalStateException("No matching docid was cached.");
+    }
+  }
+
+  /**
+   *  Indicates whether the query has a match.  If docIteratorAdvanceTo
+   *  set a target, the iterator moves to it first.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the query matches, otherwise false.
+   */
+  public final boolean docIteratorHasMatch (RetrievalModel r) {
+
+    if (this.docIteratorDoc < this.docIteratorTarget) {
+      this.advance (r, this.docIteratorTarget);
     }
+
+    return (this.docIteratorDoc != Qry.NO_MORE_DOCS);
   }
 
   /**
    *  Return the status of the cache.
-   *  @return True if a match is cached, otherwise false.
+   *  @return True if the iterator is on a match, otherwise false.
    */
   protected boolean docIteratorHasMatchCache () {
-    return (this.docIteratorMatchCache != Qry.INVALID_DOCID);
+    return ((this.docIteratorDoc >= this.docIteratorTarget) &&
+            (this.docIteratorDoc != Qry.NO_MORE_DOCS));
   }
 
   /**
-   *  Set the matching docid cache.
+   *  Set the matching docid cache.  docIteratorSeek implementations
+   *  that are written in terms of docIteratorHasMatch use it to record
+   *  their match.
    *  @param docid The internal document id to store in the cache.
    */
-  private void docIteratorSetMatchCache (int docid) {
-    this.docIteratorMatchCache = docid;
+  protected void docIteratorSetMatchCache (int docid) {
+    this.docIteratorDoc = docid;
   }
 
   /**
@@ -387,9 +539,58 @@ public abstract class Qry {
    *  internal iterators; this method must be called before iteration
    *  can begin.
    *  @param r A retrieval model that guides initialization
+   *  @param index The index to evaluate the query against
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public abstract void initialize(RetrievalModel r, IndexContext index)
+    throws IOException;
+
+  /**
+   *  Initialize the query operator (and its arguments) to be evaluated
+   *  against the current index (see Idx.getContext).
+   *  @param r A retrieval model that guides initialization
    *  @throws IOException Error accessing the Lucene index.
    */
-  public abstract void initialize(RetrievalModel r) throws IOException;
+  public void initialize(RetrievalModel r) throws IOException {
+    this.initialize (r, Idx.getContext ());
+  }
+
+  /**
+   *  Copy an initialized query operator and its arguments, so that
+   *  the copy can be iterated independently of the original, e.g., by
+   *  another thread.  Data that doesn't change during iteration (such
+   *  as materialized inverted lists and term statistics) is shared;
+   *  iterator state is not.  It should be called after initialize
+   *  and before iteration begins.
+   *  @return The copy.
+   */
+  public Qry copy () {
+
+    Qry q;
+
+    try {
+      q = (Qry) super.clone ();
+    } catch (CloneNotSupportedException ex) {
+      throw new IllegalStateException (ex);
+    }
+
+    q.args = new ArrayList<Qry> (this.args.size ());
+
+    for (Qry q_i: this.args) {
+      q.args.add (q_i.copy ());
+    }
+
+    q.copyIteratorState ();
+    return q;
+  }
+
+  /**
+   *  Called by copy to give the copy its own iterator state.  Query
+   *  operators that keep mutable buffers or Lucene iterators override
+   *  this method to replace them.
+   */
+  protected void copyIteratorState () {
+  }
 
   /**
    *  Removes an argument from the list of query operator arguments.
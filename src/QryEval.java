@@ -7,6 +7,7 @@ import java.io.*;
 import java.util.*;
 import java.util.Scanner;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
 
 /**
  * This software illustrates the architecture for the portion of a
@@ -32,6 +33,11 @@ public class QryEval {
     private static boolean fb = false;
     private static boolean hasRanking = false;
     private static PrintWriter expandedQryFile = null;
+    // for intra-query parallelism, the number of docid partitions of each query
+    private static int queryPartitions = 1;
+    private static ForkJoinPool partitionPool = null;
+    // evaluate each index segment separately instead of through Lucene's merged views
+    private static boolean perSegment = false;
 
     //  --------------- Methods ---------------------------------------
 
@@ -58,6 +64,47 @@ public class QryEval {
         }
         parameters = readParameterFile(args[0]);
         Idx.open(parameters.get("indexPath"));
+        // optionally keep document lengths in memory instead of reading the norms
+        if (parameters.containsKey("preloadDocLengths") &&
+                Boolean.parseBoolean(parameters.get("preloadDocLengths"))) {
+            Idx.preloadFieldLengths();
+        }
+        // optionally map internal docids to external ids without reading stored documents
+        if (parameters.containsKey("externalIdTable") &&
+                Boolean.parseBoolean(parameters.get("externalIdTable"))) {
+            Idx.loadExternalIdTable();
+        }
+        // optionally split each query's docid range across a fork-join pool
+        if (parameters.containsKey("queryPartitions")) {
+            queryPartitions = Integer.parseInt(parameters.get("queryPartitions"));
+            if (queryPartitions > 1) partitionPool = new ForkJoinPool(queryPartitions);
+        }
+        // optionally evaluate queries segment by segment
+        if (parameters.containsKey("perSegment")) {
+            perSegment = Boolean.parseBoolean(parameters.get("perSegment"));
+        }
+        // choose term-at-a-time evaluation: auto (default), true, or false
+        if (parameters.containsKey("taat")) {
+            TaatEvaluator.setMode(parameters.get("taat"));
+        }
+        // optionally score flat queries a block of postings at a time
+        if (parameters.containsKey("blockScoring")) {
+            BlockEvaluator.setEnabled(Boolean.parseBoolean(parameters.get("blockScoring")));
+        }
+        // optionally score DAAT queries with plans generated per query shape
+        if (parameters.containsKey("queryPlans")) {
+            QryPlan.setEnabled(Boolean.parseBoolean(parameters.get("queryPlans")));
+        }
+        // optionally score blocks with the Vector API kernels, if they were built
+        if (parameters.containsKey("vectorScoring") &&
+                Boolean.parseBoolean(parameters.get("vectorScoring")) &&
+                !ScoreKernels.setVectorized(true)) {
+            System.err.println("vectorScoring: the Vector API kernels aren't available; using scalar kernels.");
+        }
+        // optionally stream term postings from the index instead of materializing them
+        if (parameters.containsKey("streamingTerms")) {
+            QryIopTerm.setStreaming(Boolean.parseBoolean(parameters.get("streamingTerms")));
+        }
         //  Open the index and initialize the retrieval model.
 //        System.out.println("retrieval algorithm" + parameters.get("retrievalAlgorithm").toLowerCase());
         if (parameters.get("retrievalAlgorithm").toLowerCase().equals("letor")) {
@@ -66,7 +113,15 @@ public class QryEval {
             System.out.println("else");
             RetrievalModel model = initializeRetrievalModel(parameters);
             //  Perform experiments.
-            processQueryFile(model);
+            try {
+                processQueryFile(model);
+            } finally {
+                // the impact file stays open while queries are evaluated
+                if (model instanceof RetrievalModelBM25 &&
+                        ((RetrievalModelBM25) model).getImpactIndex() != null) {
+                    ((RetrievalModelBM25) model).getImpactIndex().close();
+                }
+            }
         }
         //  Clean up.
 
@@ -77,9 +132,10 @@ public class QryEval {
     /**
      *
      * @param r
+     * @param log Receives the expanded query line, or null to write it to stdout.
      * @return
      */
-    private static String queryExpansion(ScoreList r) {
+    private static String queryExpansion(ScoreList r, StringBuilder log) {
         StringBuilder expandedQuery = null;
         // get parameters needed
         int fbDocs = Integer.parseInt(parameters.get("fbDocs"));
@@ -172,7 +228,7 @@ public class QryEval {
         } catch (IOException ex) {
             System.err.println("Caught IOException: " + ex.getMessage());
         } finally {
-            System.out.println(expandedQuery.toString());
+            println(log, expandedQuery.toString());
         }
         return expandedQuery.toString();
     }
@@ -266,11 +322,42 @@ public class QryEval {
             double k3 = Double.parseDouble(parameters.get("BM25:k_3"));
             if (k1 < 0 || k3 < 0 || b < 0 || b > 1) throw new IllegalArgumentException("Illegal BM25 parameters");
             model = new RetrievalModelBM25(b, k1, k3);
+            if (parameters.containsKey("BM25:maxScore")) {
+                ((RetrievalModelBM25) model).setMaxScore(Boolean.parseBoolean(parameters.get("BM25:maxScore")));
+            }
+            // block-max bounds built by BlockMaxIndex; they imply MaxScore evaluation
+            if (parameters.containsKey("BM25:blockMaxFile")) {
+                BlockMaxIndex blockMax = BlockMaxIndex.open(parameters.get("BM25:blockMaxFile"));
+                if (blockMax.isValidFor(k1, b, Idx.getContext())) {
+                    ((RetrievalModelBM25) model).setBlockMaxIndex(blockMax);
+                    ((RetrievalModelBM25) model).setMaxScore(true);
+                } else {
+                    System.err.println("Ignoring " + parameters.get("BM25:blockMaxFile") +
+                            ": it was built for other BM25 parameters or another index.");
+                }
+            }
+            // impact-ordered postings built by ImpactIndex; flat queries are evaluated score-at-a-time
+            if (parameters.containsKey("BM25:impactFile")) {
+                ImpactIndex impacts = ImpactIndex.open(parameters.get("BM25:impactFile"));
+                if (impacts.isValidFor(k1, b, Idx.getContext())) {
+                    ((RetrievalModelBM25) model).setImpactIndex(impacts);
+                } else {
+                    impacts.close();
+                    System.err.println("Ignoring " + parameters.get("BM25:impactFile") +
+                            ": it was built for other BM25 parameters or another index.");
+                }
+            }
+            if (parameters.containsKey("BM25:postingsBudget")) {
+                ((RetrievalModelBM25) model).setPostingsBudget(Long.parseLong(parameters.get("BM25:postingsBudget")));
+            }
         } else if (modelString.equals("indri")) {
             int mu = Integer.parseInt(parameters.get("Indri:mu"));
             double lambda = Double.parseDouble(parameters.get("Indri:lambda"));
             if (mu < 0 || lambda < 0 || lambda > 1) throw new IllegalArgumentException("Illegal Indri parameters");
             model = new RetrievalModelIndri(mu, lambda);
+            if (parameters.containsKey("Indri:maxScore")) {
+                ((RetrievalModelIndri) model).setMaxScore(Boolean.parseBoolean(parameters.get("Indri:maxScore")));
+            }
         } else {
             throw new IllegalArgumentException
                     ("Unknown retrieval model " + parameters.get("retrievalAlgorithm"));
@@ -306,6 +393,43 @@ public class QryEval {
      */
     static ScoreList processQuery(String qString, RetrievalModel model, String qid)
             throws IOException {
+        int outputLength = Integer.parseInt(parameters.get("trecEvalOutputLength"));
+        return processQuery(qString, model, qid, outputLength);
+    }
+
+    /**
+     * Process one query, keeping only the top numResults documents.
+     *
+     * @param qString    A string that contains a query.
+     * @param model      The retrieval model determines how matching and scoring is done.
+     * @param qid        The query id, used to find the initial ranking for feedback.
+     * @param numResults The number of documents to return.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processQuery(String qString, RetrievalModel model, String qid, int numResults)
+            throws IOException {
+        return processQuery(qString, model, qid, numResults, null, null);
+    }
+
+    /**
+     * Process one query, keeping only the top numResults documents.  If
+     * expansion isn't null, the expanded query is appended to it instead
+     * of being written, and if log isn't null, the lines that would go to
+     * stdout are appended to it, so that the caller can write them later.
+     *
+     * @param qString    A string that contains a query.
+     * @param model      The retrieval model determines how matching and scoring is done.
+     * @param qid        The query id, used to find the initial ranking for feedback.
+     * @param numResults The number of documents to return.
+     * @param expansion  Receives the expanded query line, or null.
+     * @param log        Receives the stdout lines, or null.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processQuery(String qString, RetrievalModel model, String qid, int numResults,
+                                  StringBuilder expansion, StringBuilder log)
+            throws IOException {
 
         String defaultOp = model.defaultQrySopName();
         qString = defaultOp + "(" + qString + ")";
@@ -314,8 +438,8 @@ public class QryEval {
         ScoreList r;
         // do not need feedback
         if (!fb) {
-            System.out.println("    ---->" + qString);
-            r = processQry(q, model);
+            println(log, "    ---->" + qString);
+            r = processQry(q, model, numResults);
         } else {
             double fbOrigWeight = Double.parseDouble(parameters.get("fbOrigWeight"));
             // need feedback, so we need to expand query based on initial ranking
@@ -324,21 +448,35 @@ public class QryEval {
                 r = ranking.get(qid);
                 r.sort();
             } else {
-                // if ranking file is not specified, do a retrieval to get a ranking
-                r = processQry(q, model);
+                // if ranking file is not specified, do a retrieval to get a ranking;
+                // only the top fbDocs documents are used for expansion
+                int fbDocs = Integer.parseInt(parameters.get("fbDocs"));
+                r = processQry(q, model, fbDocs);
             }
-            String expandedQuery = queryExpansion(r);
-            if (expandedQryFile != null) expandedQryFile.println(qid + ": " + expandedQuery);
-            else System.out.println("Expanded Query: " + expandedQuery);
+            String expandedQuery = queryExpansion(r, log);
+            if (expansion != null) expansion.append(qid + ": " + expandedQuery);
+            else if (expandedQryFile != null) expandedQryFile.println(qid + ": " + expandedQuery);
+            else println(log, "Expanded Query: " + expandedQuery);
             String newQuery = String.format("#wand ( %.2f %s %.2f %s)",
                     fbOrigWeight, qString, 1 - fbOrigWeight, expandedQuery);
-            System.out.println("    ---->" + newQuery);
+            println(log, "    ---->" + newQuery);
             Qry qNew = QryParser.getQuery(newQuery);
-            r = processQry(qNew, model);
+            r = processQry(qNew, model, numResults);
         }
         return r;
     }
 
+    /**
+     * Write a line to stdout, or append it to log if log isn't null.
+     *
+     * @param log  Receives the line, or null.
+     * @param line The line.
+     */
+    private static void println(StringBuilder log, String line) {
+        if (log != null) log.append(line).append('\n');
+        else System.out.println(line);
+    }
+
     /**
      * helper function, process a query and returns ScoreList
      *
@@ -348,19 +486,85 @@ public class QryEval {
      * @throws IOException
      */
     static ScoreList processQry(Qry q, RetrievalModel model) throws IOException {
+        return processQry(q, model, Integer.MAX_VALUE);
+    }
+
+    /**
+     * helper function, process a query and returns the top numResults
+     * documents.  A bounded ScoreList keeps just those documents while
+     * the query is evaluated, so the full result list is never sorted.
+     *
+     * @param q          a query operator with terms
+     * @param model      The retrieval model determines how matching and scoring is done.
+     * @param numResults The number of documents to keep.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processQry(Qry q, RetrievalModel model, int numResults) throws IOException {
+        try {
+            return evaluateQry(q, model, numResults);
+        } catch (UncheckedIOException ex) {
+            // iterators and pruning can't throw IOException, so they wrap it
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Evaluate a query for processQry.
+     *
+     * @param q          a query operator with terms
+     * @param model      The retrieval model determines how matching and scoring is done.
+     * @param numResults The number of documents to keep.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    private static ScoreList evaluateQry(Qry q, RetrievalModel model, int numResults) throws IOException {
         if (q != null) {
 
-            ScoreList r = new ScoreList();
+            // the whole query is evaluated against one index, even if the current index changes
+            IndexContext index = Idx.getContext();
+            ScoreList r = (numResults == Integer.MAX_VALUE) ? new ScoreList(index) : new ScoreList(index, numResults);
+
+            // flat queries with an impact index are evaluated from the impact-ordered postings
+            if (SaatEvaluator.supports(q, model, index)) {
+                SaatEvaluator.evaluate(q, (RetrievalModelBM25) model, index, numResults, r);
+                r.sort();
+                return r;
+            }
+
+            if (q.args.size() > 0 && perSegment) {
+                return processQryPerSegment(q, model, numResults, index);
+            }
+
+            if (q.args.size() > 0 && queryPartitions > 1) {
+                return processQryPartitioned(q, model, numResults, index, queryPartitions);
+            }
 
             if (q.args.size() > 0) {        // Ignore empty queries
 
-                q.initialize(model);
+                q.initialize(model, index);
+
+                // flat queries can be scored a block of postings at a time
+                if (BlockEvaluator.useBlocks(q, model)) {
+                    BlockEvaluator.evaluate(q, model, r);
+                    r.sort();
+                    return r;
+                }
+
+                // short flat queries are cheaper to evaluate term-at-a-time
+                if (TaatEvaluator.useTaat(q, model, numResults)) {
+                    TaatEvaluator.evaluate(q, model, r);
+                    r.sort();
+                    return r;
+                }
 
-                while (q.docIteratorHasMatch(model)) {
-                    int docid = q.docIteratorGetMatch();
-                    double score = ((QrySop) q).getScore(model);
+                QrySop sop = (QrySop) q;
+                QryScorer scorer = QryPlan.compile(sop, model);
+                for (int docid = sop.nextDoc(model); docid != Qry.NO_MORE_DOCS; docid = sop.nextDoc(model)) {
+                    double score = scorer.score(docid);
                     r.add(docid, score);
-                    q.docIteratorAdvancePast(docid);
+                    // operators that prune dynamically need to know what can still enter the list
+                    sop.setScoreThreshold(r.getThreshold());
                 }
             }
             r.sort();
@@ -369,6 +573,271 @@ public class QryEval {
             return null;
     }
 
+    /**
+     * Evaluate an initialized query over its docids [lo, hi), adding the
+     * matches to r as docBase + docid.
+     *
+     * @param q       an initialized query operator
+     * @param model   The retrieval model determines how matching and scoring is done.
+     * @param r       The list that the matches are added to.
+     * @param docBase The index docid of the query's docid 0.
+     * @param lo      The first docid to evaluate.
+     * @param hi      The docid to stop at.
+     * @throws IOException Error accessing the index
+     */
+    private static void evaluateRange(Qry q, RetrievalModel model, ScoreList r,
+                                      int docBase, int lo, int hi) throws IOException {
+        QrySop sop = (QrySop) q;
+        QryScorer scorer = QryPlan.compile(sop, model);
+        // the list may already hold documents, e.g. from an earlier segment
+        sop.setScoreThreshold(r.getThreshold());
+        // NO_MORE_DOCS is larger than any hi
+        for (int docid = sop.advance(model, lo); docid < hi; docid = sop.nextDoc(model)) {
+            double score = scorer.score(docid);
+            r.add(docBase + docid, score);
+            sop.setScoreThreshold(r.getThreshold());
+        }
+    }
+
+    /**
+     * Evaluate one query over the docids [lo, hi).
+     */
+    private static class PartitionTask extends RecursiveTask<ScoreList> {
+        private static final long serialVersionUID = 1L;
+
+        private final Qry q;
+        private final RetrievalModel model;
+        private final IndexContext index;
+        private final int numResults;
+        private final int docBase;
+        private final int lo;
+        private final int hi;
+
+        private PartitionTask(Qry q, RetrievalModel model, IndexContext index, int numResults, int lo, int hi) {
+            this(q, model, index, numResults, 0, lo, hi);
+        }
+
+        /**
+         * @param index   The index that the results belong to.
+         * @param docBase The index docid of the query's docid 0.
+         */
+        private PartitionTask(Qry q, RetrievalModel model, IndexContext index, int numResults,
+                              int docBase, int lo, int hi) {
+            this.q = q;
+            this.model = model;
+            this.index = index;
+            this.numResults = numResults;
+            this.docBase = docBase;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected ScoreList compute() {
+            ScoreList r = (numResults == Integer.MAX_VALUE) ? new ScoreList(index) : new ScoreList(index, numResults);
+            try {
+                evaluateRange(q, model, r, docBase, lo, hi);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return r;
+        }
+    }
+
+    /**
+     * Get the term operators (the arguments of #SCORE) of a query, in
+     * the same order for every copy of the query.
+     *
+     * @param q     a query operator
+     * @param terms The list that the term operators are added to.
+     * @return terms
+     */
+    private static List<QryIop> getScoreArgs(Qry q, List<QryIop> terms) {
+        if (q instanceof QrySopScore) {
+            terms.add((QryIop) q.args.get(0));
+        } else {
+            for (Qry q_i : q.args) {
+                getScoreArgs(q_i, terms);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Process a query one index segment at a time.  Each segment gets
+     * its own copy of the query, whose inverted lists and document
+     * lengths are read from the segment directly instead of through
+     * Lucene's merged (MultiFields) views, so there is no per-posting
+     * translation between segments.  The term statistics of the
+     * segments are added up before the copies are scored, so every
+     * document gets the same score as it would from the whole index.
+     * The segments are evaluated in parallel when queryPartitions is
+     * set; otherwise they share one result list, so documents that
+     * were found in earlier segments raise the pruning threshold.
+     *
+     * @param q          a query operator with terms
+     * @param model      The retrieval model determines how matching and scoring is done.
+     * @param numResults The number of documents to keep.
+     * @param index      The index to evaluate the query against.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processQryPerSegment(Qry q, RetrievalModel model, int numResults,
+                                          IndexContext index) throws IOException {
+        List<IndexContext> leaves = index.getLeaves();
+        ScoreList r = (numResults == Integer.MAX_VALUE) ? new ScoreList(index) : new ScoreList(index, numResults);
+        if (leaves.isEmpty()) {
+            return r;
+        }
+
+        // copy the query before any copy is initialized
+        List<Qry> copies = new ArrayList<>();
+        List<List<QryIop>> terms = new ArrayList<>();
+        for (int s = 0; s < leaves.size(); s++) {
+            Qry q_s = (s == 0) ? q : q.copy();
+            copies.add(q_s);
+            terms.add(getScoreArgs(q_s, new ArrayList<>()));
+        }
+
+        try {
+            // evaluate the term operators in each segment
+            List<Callable<Void>> init = new ArrayList<>();
+            for (int s = 0; s < leaves.size(); s++) {
+                final IndexContext leaf = leaves.get(s);
+                final List<QryIop> terms_s = terms.get(s);
+                init.add(() -> {
+                    for (QryIop t : terms_s) {
+                        t.initialize(model, leaf);
+                    }
+                    return null;
+                });
+            }
+            runAll(init);
+
+            // add up the statistics of the segments
+            for (int i = 0; i < terms.get(0).size(); i++) {
+                int df = 0;
+                int ctf = 0;
+                for (List<QryIop> terms_s : terms) {
+                    df += terms_s.get(i).getDf();
+                    ctf += terms_s.get(i).getCtf();
+                }
+                for (List<QryIop> terms_s : terms) {
+                    terms_s.get(i).setCollectionStatistics(df, ctf);
+                }
+            }
+
+            // initialize the rest of each copy, then evaluate it
+            if (partitionPool == null) {
+                for (int s = 0; s < leaves.size(); s++) {
+                    IndexContext leaf = leaves.get(s);
+                    Qry q_s = copies.get(s);
+                    q_s.initialize(model, leaf);
+                    evaluateRange(q_s, model, r, leaf.getDocBase(), 0, leaf.getReader().maxDoc());
+                }
+            } else {
+                List<PartitionTask> tasks = new ArrayList<>();
+                for (int s = 0; s < leaves.size(); s++) {
+                    IndexContext leaf = leaves.get(s);
+                    Qry q_s = copies.get(s);
+                    q_s.initialize(model, leaf);
+                    tasks.add(new PartitionTask(q_s, model, index, numResults,
+                            leaf.getDocBase(), 0, leaf.getReader().maxDoc()));
+                }
+                for (PartitionTask task : tasks) {
+                    partitionPool.execute(task);
+                }
+                for (PartitionTask task : tasks) {
+                    ScoreList r_s = task.join();
+                    for (int i = 0; i < r_s.size(); i++) {
+                        r.add(r_s.getDocid(i), r_s.getDocidScore(i));
+                    }
+                }
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        r.sort();
+        return r;
+    }
+
+    /**
+     * Run tasks on the partition pool, or in this thread if there is no
+     * pool, and wait for them to finish.
+     *
+     * @param tasks The tasks.
+     * @throws IOException A task could not access the index
+     */
+    private static void runAll(List<Callable<Void>> tasks) throws IOException {
+        try {
+            if (partitionPool == null) {
+                for (Callable<Void> task : tasks) {
+                    task.call();
+                }
+            } else {
+                for (Future<Void> f : partitionPool.invokeAll(tasks)) {
+                    f.get();
+                }
+            }
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new RuntimeException(cause);
+        } catch (IOException | RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Process a query by splitting the docid range into partitions that
+     * are evaluated in parallel, each by its own copy of the initialized
+     * query, and merging the partitions' top numResults documents.  A
+     * document's score doesn't depend on the other documents, so the
+     * ranking is the same as processQry's.
+     *
+     * @param q          a query operator with terms
+     * @param model      The retrieval model determines how matching and scoring is done.
+     * @param numResults The number of documents to keep.
+     * @param index      The index to evaluate the query against.
+     * @param partitions The number of docid partitions.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processQryPartitioned(Qry q, RetrievalModel model, int numResults,
+                                           IndexContext index, int partitions) throws IOException {
+        q.initialize(model, index);
+
+        // copy the query before any partition starts iterating it
+        int maxDoc = index.getReader().maxDoc();
+        List<PartitionTask> tasks = new ArrayList<>();
+        for (int p = 0; p < partitions; p++) {
+            int lo = (int) ((long) maxDoc * p / partitions);
+            int hi = (int) ((long) maxDoc * (p + 1) / partitions);
+            if (lo < hi) {
+                tasks.add(new PartitionTask((p == 0) ? q : q.copy(), model, index, numResults, lo, hi));
+            }
+        }
+
+        ScoreList r = (numResults == Integer.MAX_VALUE) ? new ScoreList(index) : new ScoreList(index, numResults);
+        try {
+            for (PartitionTask task : tasks) {
+                partitionPool.execute(task);
+            }
+            for (PartitionTask task : tasks) {
+                ScoreList r_p = task.join();
+                for (int i = 0; i < r_p.size(); i++) {
+                    r.add(r_p.getDocid(i), r_p.getDocidScore(i));
+                }
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        r.sort();
+        return r;
+    }
+
     static void processQueryFile(RetrievalModel model)
             throws IOException {
         // get parameters need
@@ -389,6 +858,17 @@ public class QryEval {
             expandedQryFile = new PrintWriter(new FileWriter(fbExpansionQueryFile));
         }
 
+        // optionally evaluate several queries at once
+        int threads = parameters.containsKey("threads") ? Integer.parseInt(parameters.get("threads")) : 1;
+        if (threads > 1) {
+            try {
+                processQueryFileParallel(model, threads);
+            } finally {
+                if (expandedQryFile != null) expandedQryFile.close();
+            }
+            return;
+        }
+
         BufferedReader input = null;
 
         try {
@@ -431,6 +911,116 @@ public class QryEval {
         }
     }
 
+    /**
+     * One query of a parallel batch, and its results.
+     */
+    private static class QueryTask implements Callable<QueryTask> {
+        private final String qid;
+        private final String query;
+        private final RetrievalModel model;
+        private final StringBuilder expansion = new StringBuilder();
+        private final StringBuilder log = new StringBuilder();
+        private ScoreList result = null;
+        private long latency = 0;       // nanoseconds
+
+        private QueryTask(String qid, String query, RetrievalModel model) {
+            this.qid = qid;
+            this.query = query;
+            this.model = model;
+        }
+
+        @Override
+        public QueryTask call() throws IOException {
+            long start = System.nanoTime();
+            int outputLength = Integer.parseInt(parameters.get("trecEvalOutputLength"));
+            this.result = processQuery(this.query, this.model, this.qid, outputLength,
+                    (expandedQryFile != null) ? this.expansion : null, this.log);
+            this.latency = System.nanoTime() - start;
+            return this;
+        }
+    }
+
+    /**
+     * Process the query file with a pool of worker threads.  Queries are
+     * parsed and evaluated concurrently, but results (and expanded
+     * queries and other query output) are written in query file order as soon as all earlier
+     * queries are done.  The latency of each query and the throughput of
+     * the batch are reported on stdout.
+     *
+     * @param model   The retrieval model determines how matching and scoring is done.
+     * @param threads The number of worker threads.
+     * @throws IOException Error accessing the index or the files
+     */
+    static void processQueryFileParallel(RetrievalModel model, int threads)
+            throws IOException {
+        int outputLength = Integer.parseInt(parameters.get("trecEvalOutputLength"));
+        String queryFilePath = parameters.get("queryFilePath");
+        String trecEvalOutputPath = parameters.get("trecEvalOutputPath");
+
+        // read the whole batch first, so that syntax errors are found before any work is done
+        List<QueryTask> tasks = new ArrayList<>();
+        try (BufferedReader input = new BufferedReader(new FileReader(queryFilePath))) {
+            String qLine;
+            while ((qLine = input.readLine()) != null) {
+                int d = qLine.indexOf(':');
+                if (d < 0) {
+                    throw new IllegalArgumentException
+                            ("Syntax error:  Missing ':' in query line.");
+                }
+                tasks.add(new QueryTask(qLine.substring(0, d), qLine.substring(d + 1), model));
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long[] latencies = new long[tasks.size()];
+        long start = System.nanoTime();
+
+        try (PrintWriter output = new PrintWriter(new FileWriter(trecEvalOutputPath))) {
+            List<Future<QueryTask>> futures = new ArrayList<>();
+            for (QueryTask task : tasks) {
+                futures.add(pool.submit(task));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                QueryTask task;
+                try {
+                    task = futures.get(i).get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for query " + tasks.get(i).qid, ex);
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    throw new IOException(cause);
+                }
+                if (task.expansion.length() > 0) expandedQryFile.println(task.expansion);
+                if (task.result != null) printResults(task.qid, task.result, output, outputLength);
+                task.result = null;             // let the results be collected
+                latencies[i] = task.latency;
+                System.out.print(task.log);
+                System.out.println(String.format("Query %s:  %.3f ms", task.qid, task.latency / 1e6));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // throughput and latency of the batch
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        int n = latencies.length;
+        if (n > 0) {
+            double sum = 0;
+            for (long latency : latencies) sum += latency;
+            System.out.println(String.format(
+                    "Queries:  %d, threads:  %d, time:  %.3f ms, QPS:  %.2f", n, threads,
+                    elapsed / 1e6, n / (elapsed / 1e9)));
+            System.out.println(String.format(
+                    "Latency (ms):  mean %.3f, p50 %.3f, p95 %.3f, max %.3f",
+                    sum / n / 1e6, latencies[(n - 1) / 2] / 1e6,
+                    latencies[(int) Math.ceil(0.95 * n) - 1] / 1e6, latencies[n - 1] / 1e6));
+        }
+    }
+
     /**
      * Print the query results.
      * <p>
@@ -450,7 +1040,7 @@ public class QryEval {
         } else {
             for (int i = 0; i < Math.min(outputLength, result.size()); i++) {
                 output.println(String.format("%s\tQ0\t%s\t%d\t%.18f\trun-1", queryName,
-                        Idx.getExternalDocid(result.getDocid(i)), i + 1, result.getDocidScore(i)));
+                        result.getExternalDocid(i), i + 1, result.getDocidScore(i)));
             }
         }
         output.flush();
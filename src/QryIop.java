@@ -64,19 +64,54 @@ public abstract class QryIop extends Qry {
   private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
   /**
-   *  Advance the query operator's internal iterator beyond the
-   *  specified document.
-   *  @param docid The document's internal document id
+   *  When the inverted list covers just part of the index (e.g., one
+   *  segment), the df and ctf of the whole index, or -1 if they
+   *  haven't been set.
    */
-  public void docIteratorAdvancePast (int docid) {
+  private int collectionDf = -1;
+  private int collectionCtf = -1;
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+  /**
+   *  Move the docIterator to the first document at or after target
+   *  (see Qry.docIteratorSeek).
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @param target An internal document id.
+   *  @return The internal id of the document, or NO_MORE_DOCS.
+   */
+  protected int docIteratorSeek (RetrievalModel r, int target) {
+
+    if (target == Qry.NO_MORE_DOCS) {
+      this.docIteratorIndex = this.invertedList.df;
+    } else {
+      this.docIteratorIndex =
+        this.invertedList.findDocid (this.docIteratorIndex, target);
     }
-           
+
     this.locIteratorIndex = 0;
+    return this.docIteratorIndexDocid ();
   }
+
+  /**
+   *  Move the docIterator to the next document in the inverted list.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return The internal id of the document, or NO_MORE_DOCS.
+   */
+  @Override
+  protected int docIteratorNext (RetrievalModel r) {
+    this.docIteratorIndex ++;
+    this.locIteratorIndex = 0;
+    return this.docIteratorIndexDocid ();
+  }
+
+  /**
+   *  The document that docIteratorIndex points to.
+   *  @return The internal document id, or NO_MORE_DOCS.
+   */
+  private int docIteratorIndexDocid () {
+    return (this.docIteratorIndex < this.invertedList.df) ?
+      this.invertedList.getDocid (this.docIteratorIndex) : Qry.NO_MORE_DOCS;
+  }
+
   public void help () {
         this.docIteratorIndex = 0;
              
@@ -84,54 +119,66 @@ public abstract class QryIop extends Qry {
     }
   /**
    *  Advance the query operator's internal iterator to the specified
-   *  document if it exists, or beyond if it doesn't.
+   *  document if it exists, or beyond if it doesn't.  An inverted list
+   *  doesn't need a retrieval model to move, so it moves now.
    *  @param docid The document's internal document id
    */
+  @Override
   public void docIteratorAdvanceTo (int docid) {
-
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
-           
+    this.advance (null, docid);
     this.locIteratorIndex = 0;
   }
 
   /**
-   *  Advance the query operator's internal iterator beyond the
-   *  any possible document.
+   *  Copy the postings from the one that the docIterator points to,
+   *  up to a document, into arrays, and advance the docIterator past
+   *  them.  Block-at-a-time evaluation reads inverted lists this way.
+   *  @param end The internal document id to stop at.
+   *  @param docids Receives the document ids.
+   *  @param tfs Receives the term frequencies.
+   *  @return The number of postings copied, at most docids.length.
    */
-  public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
-  }
+  public int docIteratorNextBlock (int end, int[] docids, int[] tfs) {
 
-  /**
-   *  Return the id of the document that the query operator's internal
-   *  iterator points to now.  Use docIteratorHasMatch to determine whether
-   *  the iterator currently points to a document.  If the iterator
-   *  doesn't point to a document, an invalid document id is returned.
-   *  @return The internal id of the current document.
-   */
-  public int docIteratorGetMatch () {
-    return this.invertedList.getDocid (this.docIteratorIndex);
+    int df = this.invertedList.df;
+    int i = this.docIteratorIndex;
+    int n = 0;
+
+    while ((n < docids.length) && (i < df)) {
+      int docid = this.invertedList.getDocid (i);
+
+      if (docid >= end) {
+        break;
+      }
+
+      docids[n] = docid;
+      tfs[n] = this.invertedList.getTf (i);
+      n++;
+      i++;
+    }
+
+    this.docIteratorIndex = i;
+    this.locIteratorIndex = 0;
+    this.docIteratorSetMatchCache (this.docIteratorIndexDocid ());
+    return n;
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public void docIteratorFinish () {
+    this.advance (null, Qry.NO_MORE_DOCS);
   }
 
   /**
-   *  Indicates whether the query has a matching document.
-   *  @param r A retrieval model (that is ignored - it can be null)
-   *  @return True if the query matches a document, otherwise false.
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.  Use docIteratorHasMatch to determine whether the
+   *  iterator currently points to a document.
+   *  @return The document's term frequency.
    */
-  public boolean docIteratorHasMatch (RetrievalModel r) {
-    return (this.docIteratorIndex < this.invertedList.df);
+  public int docIteratorGetMatchTf () {
+    return this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -141,7 +188,7 @@ public abstract class QryIop extends Qry {
    *  @return The collection term frequency (ctf).
    */
   public int getCtf () {
-    return this.invertedList.ctf;
+    return (this.collectionCtf >= 0) ? this.collectionCtf : this.invertedList.ctf;
   }
 
   /**
@@ -151,7 +198,37 @@ public abstract class QryIop extends Qry {
    *  @return The document frequency (df).
    */
   public int getDf () {
-    return this.invertedList.df;
+    return (this.collectionDf >= 0) ? this.collectionDf : this.invertedList.df;
+  }
+
+  /**
+   *  Whether setCollectionStatistics has been called.
+   *  @return True if getDf and getCtf describe the whole index.
+   */
+  public boolean hasCollectionStatistics () {
+    return (this.collectionDf >= 0);
+  }
+
+  /**
+   *  Set the df and ctf of the whole index, for an operator that was
+   *  initialized against one segment of the index.  getDf and getCtf
+   *  return these values instead of the inverted list's.
+   *  @param df The document frequency in the whole index.
+   *  @param ctf The collection term frequency in the whole index.
+   */
+  public void setCollectionStatistics (int df, int ctf) {
+    this.collectionDf = df;
+    this.collectionCtf = ctf;
+  }
+
+  /**
+   *  Get an upper bound on the term frequency of any document in
+   *  this query operator's inverted list.  It is an error to call this
+   *  method before the object's initialize method is called.
+   *  @return The maximum term frequency.
+   */
+  public int getMaxTf () {
+    return this.invertedList.maxTf;
   }
 
   /**
@@ -174,13 +251,16 @@ public abstract class QryIop extends Qry {
    *  internal iterators; this method must be called before iteration
    *  can begin.
    *  @param r A retrieval model (that is ignored)
+   *  @param index The index to evaluate the query against
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(RetrievalModel r, IndexContext index) throws IOException {
+
+    this.index = index;
 
     //  Initialize the query arguments (if any).
 
     for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
+      ((QryIop) q_i).initialize (r, index);
     }
 
     //  Evaluate the operator.
@@ -191,6 +271,7 @@ public abstract class QryIop extends Qry {
 
     this.docIteratorIndex = 0;
     this.locIteratorIndex = 0;
+    this.docIteratorClearMatchCache ();
   }
   
  /**
@@ -207,13 +288,9 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
-
-    while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
-      locIteratorIndex ++;
-    }
+    this.locIteratorIndex =
+      this.invertedList.findPositionPast (this.docIteratorIndex,
+                                          this.locIteratorIndex, loc);
   }
 
   /**
@@ -222,7 +299,7 @@ public abstract class QryIop extends Qry {
    */
   public void locIteratorFinish () {
     this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+      this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -233,8 +310,8 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    return this.invertedList.getPosition (this.docIteratorIndex,
+                                          this.locIteratorIndex);
   }
 
   /**
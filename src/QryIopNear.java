@@ -1,6 +1,6 @@
 
 import java.io.*;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 
 public class QryIopNear extends QryIop {
@@ -24,13 +24,15 @@ public class QryIopNear extends QryIop {
         //  Create an empty inverted list.  If there are no query arguments,
         //  that's the final result.
         this.invertedList = new InvList(this.getField());
-        // a list of postings to record
-        ArrayList<Integer> postings = new ArrayList<>();
+        // a reusable buffer of locations to record, and the number of locations in it
+        int[] postings = new int[16];
+        int postingsSize = 0;
         if (argSize < 2) {
             return;
         }
-        //  Use docIteratorHasMatchAll method in Qry to get the doc that has all terms in it
-        while (this.docIteratorHasMatchAll(null)) {
+        //  Use docIteratorSeekAll method in Qry to get the doc that has all terms in it
+        int docid = this.docIteratorSeekAll(null, 0);
+        while (docid != Qry.NO_MORE_DOCS) {
             //  location of previous term
             int locRec = -1;
             //  this loop checks if the adjacent two terms meet the distance requirement
@@ -62,7 +64,10 @@ public class QryIopNear extends QryIop {
                 locRec = q.locIteratorGetMatch();
                 if (i == argSize - 1) {
                     //  record this location just found
-                    postings.add(locRec);
+                    if (postingsSize == postings.length) {
+                        postings = Arrays.copyOf(postings, 2 * postingsSize);
+                    }
+                    postings[postingsSize++] = locRec;
                     locRec = -1;
                     // find next match in the same doc, advance all terms' loc
                     // not just the first!!
@@ -78,16 +83,14 @@ public class QryIopNear extends QryIop {
                     if (j != argSize) break;
                 }
             }
-            if (postings.size() > 0) {
+            if (postingsSize > 0) {
                 //only when postings is not empty can we add those locations,
                 // or we will have a lot false results(contain all terms but not near enough)!!
-                this.invertedList.appendPosting(firstQry.docIteratorGetMatch(), postings);
-                postings.clear();
+                this.invertedList.appendPosting(docid, postings, postingsSize);
+                postingsSize = 0;
             }
             //move on to next doc
-            if (firstQry.docIteratorHasMatch(null)) {
-                firstQry.docIteratorAdvancePast(firstQry.docIteratorGetMatch());
-            }
+            docid = this.docIteratorSeekAll(null, docid + 1);
         }
     }
 }
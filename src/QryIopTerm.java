@@ -4,18 +4,50 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  By default the term's inverted list is materialized when the
+ *  operator is initialized, like every other QryIop operator.  In
+ *  streaming mode (see setStreaming) the docIterator and locIterator
+ *  instead read the live Lucene PostingsEnum:  docIteratorSeek uses
+ *  Lucene's skip data, and the locations of a document are read
+ *  only if a parent operator asks for them.  df and ctf come from the
+ *  index statistics, which also count deleted documents.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
+  /**
+   *  Whether new TERM operators stream their postings from the index
+   *  instead of materializing an inverted list.
+   */
+  private static boolean streamingMode = false;
+
   private String term;
 
+  /**
+   *  The state of the streaming docIterator and locIterator.  These
+   *  are used only when streaming is true.
+   */
+  private boolean streaming = false;
+  private PostingsEnum postings = null;
+  private int streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+  private int streamDf = 0;
+  private int streamCtf = 0;
+  private int[] locations = new int[16];
+  private int locationsDocid = Qry.INVALID_DOCID;
+  private int locationsSize = 0;
+  private int locationsIndex = 0;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -35,17 +67,345 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Get the term string.
+   *  @return The processed term string.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
+  /**
+   *  Choose whether TERM operators that are initialized from now on
+   *  stream their postings from the index.
+   *  @param streaming True to stream postings, false to materialize them.
+   */
+  public static void setStreaming (boolean streaming) {
+    QryIopTerm.streamingMode = streaming;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+
+    this.streaming = QryIopTerm.streamingMode;
+
+    if (! this.streaming) {
+      this.invertedList = new InvList(this.index, this.term, this.field);
+      return;
+    }
+
+    //  Streaming mode.  Position the docIterator on the first posting.
+
+    TermsEnum t = this.index.seekTerm (this.field, new BytesRef (this.term));
+
+    this.streamDf = (t == null) ? 0 : t.docFreq ();
+    this.streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+    this.locationsDocid = Qry.INVALID_DOCID;
+
+    if (this.streamDf < 1) {
+      this.streamCtf = 0;
+      this.postings = null;
+      return;
+    }
+
+    this.streamCtf = (int) t.totalTermFreq ();
+    this.postings = t.postings (null, PostingsEnum.POSITIONS);
+
+    if (this.postings != null) {
+      this.streamDocid = this.postings.nextDoc ();
+    }
+  }
+
+  /**
+   *  Give a copy its own location buffer and, in streaming mode, its
+   *  own PostingsEnum, positioned on the first posting.
+   */
+  @Override
+  protected void copyIteratorState () {
+
+    this.locations = new int[this.locations.length];
+    this.locationsDocid = Qry.INVALID_DOCID;
+
+    if (this.streaming) {
+      try {
+        this.evaluate ();
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+    }
+  }
+
+  //  --------------- Streaming docIterator -------------------------
+
+  /**
+   *  Move the docIterator to the first document at or after target
+   *  (see Qry.docIteratorSeek).  In streaming mode, Lucene's skip data
+   *  is used.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @param target An internal document id.
+   *  @return The internal id of the document, or NO_MORE_DOCS.
+   */
+  @Override
+  protected int docIteratorSeek (RetrievalModel r, int target) {
+
+    if (! this.streaming) {
+      return super.docIteratorSeek (r, target);
+    }
+
+    if (target == Qry.NO_MORE_DOCS) {
+      this.streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+    } else if (this.streamDocid < target) {
+      this.streamAdvance (target);
+    }
+
+    return this.streamDocid;
+  }
+
+  /**
+   *  Move the docIterator to the next document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return The internal id of the document, or NO_MORE_DOCS.
+   */
+  @Override
+  protected int docIteratorNext (RetrievalModel r) {
+
+    if (! this.streaming) {
+      return super.docIteratorNext (r);
+    }
+
+    this.streamAdvance (this.streamDocid + 1);
+    return this.streamDocid;
+  }
+
+  /**
+   *  Copy the postings before a document into arrays, and advance the
+   *  docIterator past them (see QryIop.docIteratorNextBlock).
+   *  @param end The internal document id to stop at.
+   *  @param docids Receives the document ids.
+   *  @param tfs Receives the term frequencies.
+   *  @return The number of postings copied, at most docids.length.
+   */
+  @Override
+  public int docIteratorNextBlock (int end, int[] docids, int[] tfs) {
+
+    if (! this.streaming) {
+      return super.docIteratorNextBlock (end, docids, tfs);
+    }
+
+    int n = 0;
+
+    try {
+      while ((n < docids.length) && (this.streamDocid < end)) {
+        docids[n] = this.streamDocid;
+        tfs[n] = this.postings.freq ();
+        n++;
+        this.streamDocid = this.postings.nextDoc ();
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+
+    this.docIteratorSetMatchCache (this.streamDocid);
+    return n;
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.
+   *  @return The document's term frequency.
+   */
+  @Override
+  public int docIteratorGetMatchTf () {
+
+    if (! this.streaming) {
+      return super.docIteratorGetMatchTf ();
+    }
+
+    try {
+      return this.postings.freq ();
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of the term.
+   *  @return The collection term frequency (ctf).
+   */
+  @Override
+  public int getCtf () {
+    return (this.streaming && ! this.hasCollectionStatistics ()) ?
+      this.streamCtf : super.getCtf ();
+  }
+
+  /**
+   *  Get the document frequency (df) of the term.
+   *  @return The document frequency (df).
+   */
+  @Override
+  public int getDf () {
+    return (this.streaming && ! this.hasCollectionStatistics ()) ?
+      this.streamDf : super.getDf ();
+  }
+
+  /**
+   *  Get an upper bound on the term frequency of any document.  Lucene
+   *  doesn't store the maximum tf, so in streaming mode it is bounded
+   *  by assuming that every other document has tf=1.
+   *  @return The maximum term frequency.
+   */
+  @Override
+  public int getMaxTf () {
+    if (! this.streaming) {
+      return super.getMaxTf ();
+    }
+
+    return (this.streamDf > 0) ? this.streamCtf - this.streamDf + 1 : 0;
+  }
+
+  /**
+   *  Move the PostingsEnum to the first document &gt;= target.
+   *  @param target An internal document id.
+   */
+  private void streamAdvance (int target) {
+
+    if (this.streamDocid == DocIdSetIterator.NO_MORE_DOCS) {
+      return;
+    }
+
+    try {
+      if (target == this.streamDocid + 1) {
+        this.streamDocid = this.postings.nextDoc ();
+      } else {
+        this.streamDocid = this.postings.advance (target);
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  //  --------------- Streaming locIterator -------------------------
+
+  /**
+   *  Read the locations of the current document, if they haven't
+   *  been read already.  This resets the locIterator.
+   */
+  private void streamLoadLocations () {
+
+    if (this.locationsDocid == this.streamDocid) {
+      return;
+    }
+
+    try {
+      int tf = this.postings.freq ();
+
+      if (tf > this.locations.length) {
+        this.locations = new int[Math.max (tf, 2 * this.locations.length)];
+      }
+
+      for (int i = 0; i < tf; i++) {
+        this.locations[i] = this.postings.nextPosition ();
+      }
+
+      this.locationsSize = tf;
+      this.locationsIndex = 0;
+      this.locationsDocid = this.streamDocid;
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the
+   *  next location.
+   */
+  @Override
+  public void locIteratorAdvance () {
+
+    if (! this.streaming) {
+      super.locIteratorAdvance ();
+      return;
+    }
+
+    this.streamLoadLocations ();
+    this.locationsIndex ++;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified location.
+   *  @param loc The location to advance beyond.
+   */
+  @Override
+  public void locIteratorAdvancePast (int loc) {
+
+    if (! this.streaming) {
+      super.locIteratorAdvancePast (loc);
+      return;
+    }
+
+    this.streamLoadLocations ();
+
+    while ((this.locationsIndex < this.locationsSize) &&
+           (this.locations[this.locationsIndex] <= loc)) {
+      this.locationsIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond
+   *  any possible location.
+   */
+  @Override
+  public void locIteratorFinish () {
+
+    if (! this.streaming) {
+      super.locIteratorFinish ();
+      return;
+    }
+
+    this.streamLoadLocations ();
+    this.locationsIndex = this.locationsSize;
+  }
+
+  /**
+   *  Return the document location that the query operator's internal
+   *  iterator points to now.
+   *  @return The current location.
+   */
+  @Override
+  public int locIteratorGetMatch () {
+
+    if (! this.streaming) {
+      return super.locIteratorGetMatch ();
+    }
+
+    this.streamLoadLocations ();
+    return this.locations[this.locationsIndex];
+  }
+
+  /**
+   *  Returns true if the query operator's internal iterator currently
+   *  points to a location.
+   *  @return True if the iterator currently points to a location.
+   */
+  @Override
+  public boolean locIteratorHasMatch () {
+
+    if (! this.streaming) {
+      return super.locIteratorHasMatch ();
+    }
+
+    this.streamLoadLocations ();
+    return (this.locationsIndex < this.locationsSize);
   }
 
   /**
-   *  Get a string version of this query operator.  
+   *  Get a string version of this query operator.
    *  @return The string version of this query operator.
    */
   public String toString(){
@@ -355,6 +355,13 @@ public class QryParser {
           
         }
 
+    //  Weighted operators normalize their weights once, here, instead
+    //  of for every document.
+
+    if (queryTree instanceof QrySopW) {
+      ((QrySopW) queryTree).normalizeWeights();
+    }
+
     return queryTree;
   }  
 
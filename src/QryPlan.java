@@ -0,0 +1,427 @@
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  Query plans:  a scorer tree (see QryScorer) compiled into one
+ *  generated class per query shape.  The supported shapes are BM25
+ *  #SUM and Indri #AND and #WAND operators, nested to any depth, whose
+ *  leaves are #SCORE operators over any QryIop, for example a flat
+ *  #SUM over terms or the sequential dependence model's
+ *  #WAND (#AND (terms) #AND (#NEAR/1 ...) #AND (#WINDOW/8 ...)).
+ *  Operators may have at most MAX_ARITY arguments.
+ *  <p>
+ *  A shape's plan is a tree of method handles with one branch per
+ *  argument, so every argument loop is unrolled to the shape's arity,
+ *  and the term scoring formulas are called directly.  The plan reads
+ *  the query's scorers and weights from arrays, so it depends only on
+ *  the shape.  Each shape's plan is installed as a constant in its own
+ *  hidden class, a copy of QryPlanScorer, so the JIT compiles the whole
+ *  tree into that class's score method.  Generated classes are cached
+ *  by shape, so a query whose shape was seen before only allocates a
+ *  scorer.  Once MAX_PLANS shapes are cached, queries of new shapes
+ *  are scored by their scorer trees.
+ *  </p>
+ *  <p>
+ *  Plans score exactly as the scorer trees do (see QryScorer).
+ *  Queries of other shapes are scored by their scorer trees.
+ *  </p>
+ */
+public class QryPlan {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String TEMPLATE_CLASS = "QryPlanScorer";
+
+  /**
+   *  The most arguments that an operator in a plan may have.  Each
+   *  argument nests the plan one level deeper, and past about this
+   *  depth the JIT stops inlining it, so wider operators are scored
+   *  faster by their scorer trees.
+   */
+  private static final int MAX_ARITY = 24;
+
+  /**
+   *  The most shapes that have plans.  Generated classes are never
+   *  unloaded while the cache holds them, and arbitrary or expanded
+   *  queries can have any number of shapes, so the cache stops
+   *  growing here.
+   */
+  private static final int MAX_PLANS = 1024;
+
+  /**
+   *  The type of a node's plan:  (scorers, weights, docid) -> value.
+   *  BM25 values are scores; Indri values are log scores.
+   */
+  private static final MethodType NODE_TYPE =
+    MethodType.methodType (double.class, QryScorer[].class, double[].class, int.class);
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup ();
+
+  /**
+   *  Whether queries are scored with plans.
+   */
+  private static boolean enabled = false;
+
+  /**
+   *  The bytes of the template class, read when the first plan is
+   *  generated.
+   */
+  private static byte[] template = null;
+
+  /**
+   *  The constructor of each shape's scorer class, by shape.
+   */
+  private static final Map<String, MethodHandle> plans =
+    new ConcurrentHashMap<String, MethodHandle> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Set whether queries are scored with plans.
+   *  @param e True to use plans.
+   */
+  public static void setEnabled (boolean e) {
+    QryPlan.enabled = e;
+  }
+
+  /**
+   *  Compile an initialized query for a retrieval model.  If plans are
+   *  enabled and the query has a supported shape, the scorer is the
+   *  shape's plan; otherwise it is the query's scorer tree.
+   *  @param q An initialized query.
+   *  @param r The retrieval model.
+   *  @return The scorer.
+   */
+  public static QryScorer compile (QrySop q, RetrievalModel r) {
+
+    QryScorer s = q.compile (r);
+
+    if (! QryPlan.enabled) {
+      return s;
+    }
+
+    QryScorer p = plan (s);
+    return (p != null) ? p : s;
+  }
+
+  /**
+   *  Get the number of shapes that have a plan.
+   *  @return The number of cached plans.
+   */
+  public static int size () {
+    return QryPlan.plans.size ();
+  }
+
+  /**
+   *  Get the plan for a scorer tree.
+   *  @param s The root of a scorer tree.
+   *  @return A scorer that runs the tree's plan, or null if the tree's
+   *    shape isn't supported or the plan cache is full.
+   */
+  static QryScorer plan (QryScorer s) {
+
+    Shape shape = new Shape (false);
+
+    try {
+      shape.operator (s);
+
+      if (! shape.supported) {
+        return null;
+      }
+
+      QryScorer[] nodes = shape.nodes.toArray (new QryScorer[shape.nodes.size ()]);
+      double[] weights = new double[shape.weights.size ()];
+
+      for (int i = 0; i < weights.length; i++) {
+        weights[i] = shape.weights.get (i);
+      }
+
+      String key = shape.toString ();
+      MethodHandle constructor = QryPlan.plans.get (key);
+
+      if (constructor == null) {
+        if (QryPlan.plans.size () >= MAX_PLANS) {
+          return null;
+        }
+
+        constructor = QryPlan.plans.computeIfAbsent (key, k -> generate (s));
+      }
+
+      return (QryScorer) constructor.invokeExact (s.node, s.r, nodes, weights);
+    } catch (RuntimeException | Error ex) {
+      throw ex;
+    } catch (Throwable t) {
+      throw new IllegalStateException (t);
+    }
+  }
+
+  /**
+   *  Generate the scorer class of a scorer tree's shape.
+   *  @param s The root of a scorer tree with a supported shape.
+   *  @return The class's constructor:
+   *    (node, r, scorers, weights) -> QryScorer.
+   */
+  private static MethodHandle generate (QryScorer s) {
+
+    try {
+      Shape shape = new Shape (true);
+      MethodHandle plan = shape.operator (s);
+      boolean log = (s instanceof QryScorer.IndriAndScorer) ||
+                    (s instanceof QryScorer.IndriFlatAndScorer);
+
+      MethodHandles.Lookup c =
+        LOOKUP.defineHiddenClassWithClassData (template (), List.of (plan, log), true);
+
+      return c.findConstructor (c.lookupClass (),
+                                MethodType.methodType (void.class, QrySop.class,
+                                                       RetrievalModel.class,
+                                                       QryScorer[].class,
+                                                       double[].class))
+        .asType (MethodType.methodType (QryScorer.class, QrySop.class,
+                                        RetrievalModel.class,
+                                        QryScorer[].class, double[].class));
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    } catch (ReflectiveOperationException ex) {
+      throw new IllegalStateException (ex);
+    }
+  }
+
+  /**
+   *  Read the template class's bytes.
+   *  @return The bytes of QryPlanScorer.class.
+   *  @throws IOException The class file can't be read.
+   */
+  private static synchronized byte[] template () throws IOException {
+
+    if (QryPlan.template == null) {
+      try (InputStream in = QryPlan.class.getResourceAsStream (TEMPLATE_CLASS + ".class")) {
+        if (in == null) {
+          throw new FileNotFoundException (TEMPLATE_CLASS + ".class");
+        }
+
+        QryPlan.template = in.readAllBytes ();
+      }
+    }
+
+    return QryPlan.template;
+  }
+
+  //  --------------- Plan operations -------------------------------
+
+  /*
+   *  Each operation has the type (scorers, weights, k, docid), where k
+   *  is the index of a node in scorers and weights.  Binding k gives
+   *  NODE_TYPE, or NODE_TYPE returning boolean.
+   */
+
+  private static boolean matches (QryScorer[] s, double[] w, int k, int docid) {
+    return s[k].matches (docid);
+  }
+
+  private static boolean bm25ArgMatches (QryScorer[] s, double[] w, int k, int docid) {
+    return ((QryScorer.Bm25TermScorer) s[k]).arg.docID () == docid;
+  }
+
+  private static boolean indriArgMatches (QryScorer[] s, double[] w, int k, int docid) {
+    return ((QryScorer.IndriTermScorer) s[k]).arg.docID () == docid;
+  }
+
+  private static double bm25Score (QryScorer[] s, double[] w, int k, int docid)
+    throws IOException {
+    return ((QryScorer.Bm25TermScorer) s[k]).score (docid);
+  }
+
+  private static double indriLogScore (QryScorer[] s, double[] w, int k, int docid)
+    throws IOException {
+    return Math.log (((QryScorer.IndriTermScorer) s[k]).score (docid));
+  }
+
+  private static double logDefaultScore (QryScorer[] s, double[] w, int k, int docid)
+    throws IOException {
+    return s[k].logDefaultScore (docid);
+  }
+
+  private static double weight (QryScorer[] s, double[] w, int k, int docid) {
+    return w[k];
+  }
+
+  private static double add (double a, double b) {
+    return a + b;
+  }
+
+  private static double multiply (double a, double b) {
+    return a * b;
+  }
+
+  /**
+   *  Collects the shape, scorers, and weights of a scorer tree, and
+   *  optionally builds its plan.  Nodes are numbered in the order that
+   *  they are visited, so trees of the same shape number their nodes
+   *  the same way.
+   */
+  private static class Shape {
+
+    private final boolean build;
+    private final StringBuilder key = new StringBuilder ();
+    private final List<QryScorer> nodes = new ArrayList<QryScorer> ();
+    private final List<Double> weights = new ArrayList<Double> ();
+    private boolean supported = true;
+
+    /**
+     *  @param build True to build the plan as well.
+     */
+    Shape (boolean build) {
+      this.build = build;
+    }
+
+    /**
+     *  Visit an operator's scorer.
+     *  @param s The scorer.
+     *  @return The plan of the operator's value, if the plan is being
+     *    built and the shape is supported; otherwise null.
+     *  @throws ReflectiveOperationException Error building the plan.
+     */
+    MethodHandle operator (QryScorer s) throws ReflectiveOperationException {
+
+      QryScorer[] args;
+      double[] exponents = null;
+      boolean flat;
+
+      if (s instanceof QryScorer.Bm25SumScorer) {
+        args = ((QryScorer.Bm25SumScorer) s).args;
+        flat = false;
+      } else if (s instanceof QryScorer.Bm25FlatSumScorer) {
+        args = ((QryScorer.Bm25FlatSumScorer) s).args;
+        flat = true;
+      } else if (s instanceof QryScorer.IndriAndScorer) {
+        args = ((QryScorer.IndriAndScorer) s).args;
+        exponents = ((QryScorer.IndriAndScorer) s).exponents;
+        flat = false;
+      } else if (s instanceof QryScorer.IndriFlatAndScorer) {
+        args = ((QryScorer.IndriFlatAndScorer) s).args;
+        exponents = ((QryScorer.IndriFlatAndScorer) s).exponents;
+        flat = true;
+      } else {
+        this.supported = false;
+        return null;
+      }
+
+      if (args.length > MAX_ARITY) {
+        this.supported = false;
+        return null;
+      }
+
+      boolean indri = (exponents != null);
+      MethodHandle value = this.build ? constant (0.0) : null;
+
+      this.key.append (indri ? "#AND(" : "#SUM(");
+
+      for (int i = 0; i < args.length; i++) {
+        QryScorer a = args[i];
+        int k = this.nodes.size ();
+        MethodHandle arg;
+
+        this.nodes.add (a);
+        this.weights.add (indri ? exponents[i] : 1.0);
+        this.key.append ((i > 0) ? " " : "");
+
+        if (a instanceof QryScorer.Bm25TermScorer && ! indri) {
+          this.key.append ("t");
+          arg = ! this.build ? null :
+            MethodHandles.guardWithTest (bind (flat ? "bm25ArgMatches" : "matches", boolean.class, k),
+                                         bind ("bm25Score", double.class, k),
+                                         constant (0.0));
+        } else if (a instanceof QryScorer.IndriTermScorer && indri) {
+          this.key.append ("t");
+          arg = ! this.build ? null :
+            MethodHandles.guardWithTest (bind (flat ? "indriArgMatches" : "matches", boolean.class, k),
+                                         bind ("indriLogScore", double.class, k),
+                                         bind ("logDefaultScore", double.class, k));
+        } else {
+          MethodHandle child = this.operator (a);
+
+          if (! this.supported || (indri != (a instanceof QryScorer.IndriAndScorer ||
+                                             a instanceof QryScorer.IndriFlatAndScorer))) {
+            this.supported = false;
+            return null;
+          }
+
+          arg = ! this.build ? null :
+            MethodHandles.guardWithTest (bind ("matches", boolean.class, k),
+                                         child,
+                                         indri ? bind ("logDefaultScore", double.class, k) :
+                                                 constant (0.0));
+        }
+
+        if (this.build) {
+          if (indri) {
+            arg = combine ("multiply", bind ("weight", double.class, k), arg);
+          }
+
+          value = combine ("add", value, arg);
+        }
+      }
+
+      this.key.append (")");
+      return value;
+    }
+
+    /**
+     *  @return The shape, for example "#AND(#AND(t t) #AND(t))".
+     */
+    public String toString () {
+      return this.key.toString ();
+    }
+  }
+
+  /**
+   *  A plan operation with its node index bound.
+   *  @param name The name of the operation.
+   *  @param type The operation's return type.
+   *  @param k The node index.
+   *  @return The operation with NODE_TYPE's parameters.
+   *  @throws ReflectiveOperationException The operation doesn't exist.
+   */
+  private static MethodHandle bind (String name, Class<?> type, int k)
+    throws ReflectiveOperationException {
+
+    MethodHandle op = LOOKUP.findStatic (QryPlan.class, name,
+                                         MethodType.methodType (type, QryScorer[].class,
+                                                                double[].class, int.class,
+                                                                int.class));
+    return MethodHandles.insertArguments (op, 2, k);
+  }
+
+  /**
+   *  A constant with NODE_TYPE's parameters.
+   *  @param x The constant.
+   *  @return The plan.
+   */
+  private static MethodHandle constant (double x) {
+    return MethodHandles.dropArguments (MethodHandles.constant (double.class, x), 0,
+                                        NODE_TYPE.parameterList ());
+  }
+
+  /**
+   *  Combine two plans with a binary operation:  op (a, b).
+   *  @param name "add" or "multiply".
+   *  @param a The first operand.
+   *  @param b The second operand.
+   *  @return The plan.
+   *  @throws ReflectiveOperationException The operation doesn't exist.
+   */
+  private static MethodHandle combine (String name, MethodHandle a, MethodHandle b)
+    throws ReflectiveOperationException {
+
+    MethodHandle op = LOOKUP.findStatic (QryPlan.class, name,
+                                         MethodType.methodType (double.class, double.class,
+                                                                double.class));
+    MethodHandle h = MethodHandles.collectArguments (op, 1, b);
+
+    h = MethodHandles.collectArguments (h, 0, a);
+    return MethodHandles.permuteArguments (h, NODE_TYPE, 0, 1, 2, 0, 1, 2);
+  }
+}
@@ -0,0 +1,82 @@
+import java.io.*;
+import java.lang.constant.*;
+import java.lang.invoke.*;
+
+/**
+ *  The template of the classes that QryPlan generates.  For each query
+ *  shape, QryPlan defines a hidden class from this class's bytes,
+ *  whose class data is the shape's plan and whether the plan computes
+ *  log scores.  They are static final constants of the hidden class,
+ *  so the JIT compiles the plan into its score method.  This class
+ *  itself is never loaded.
+ */
+final class QryPlanScorer extends QryScorer {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The plan:  (scorers, weights, docid) -> score or log score.
+   */
+  private static final MethodHandle PLAN;
+
+  /**
+   *  True if PLAN computes log scores (Indri), false if it computes
+   *  scores (BM25).
+   */
+  private static final boolean LOG;
+
+  static {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup ();
+      Boolean log = MethodHandles.classDataAt (lookup, ConstantDescs.DEFAULT_NAME,
+                                               Boolean.class, 1);
+
+      PLAN = MethodHandles.classDataAt (lookup, ConstantDescs.DEFAULT_NAME,
+                                        MethodHandle.class, 0);
+      LOG = (log != null) && log;
+    } catch (IllegalAccessException ex) {
+      throw new ExceptionInInitializerError (ex);
+    }
+  }
+
+  /**
+   *  The plan's scorers and weights, numbered as QryPlan.Shape
+   *  numbers them.
+   */
+  private final QryScorer[] nodes;
+  private final double[] weights;
+
+  //  --------------- Methods ---------------------------------------
+
+  QryPlanScorer (QrySop node, RetrievalModel r, QryScorer[] nodes,
+                 double[] weights) {
+    super (node, r);
+    this.nodes = nodes;
+    this.weights = weights;
+  }
+
+  /**
+   *  Run the plan.
+   *  @param docid The root operator's current match.
+   *  @return The plan's value.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private double run (int docid) throws IOException {
+    try {
+      return (double) PLAN.invokeExact (this.nodes, this.weights, docid);
+    } catch (IOException | RuntimeException | Error ex) {
+      throw ex;
+    } catch (Throwable t) {
+      throw new IllegalStateException (t);
+    }
+  }
+
+  public double score (int docid) throws IOException {
+    return LOG ? Math.exp (this.run (docid)) : this.run (docid);
+  }
+
+  @Override
+  public double logScore (int docid) throws IOException {
+    return LOG ? this.run (docid) : Math.log (this.run (docid));
+  }
+}
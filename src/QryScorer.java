@@ -0,0 +1,370 @@
+import java.io.*;
+
+/**
+ *  A score calculator for an initialized QrySop operator and one
+ *  retrieval model.  QrySop.compile turns a query tree into a tree of
+ *  scorers after the query is initialized, so the choice of scoring
+ *  formula, the casts of arguments, and the term constants are
+ *  resolved once per query rather than once per document.  The Qry
+ *  tree still does the matching; a scorer only computes the score of
+ *  the document that its operator matched.
+ *  <p>
+ *  Operators and models that have no specialized scorer are compiled
+ *  to an OperatorScorer, which calls the operator's own getScore.
+ *  </p>
+ *  <p>
+ *  Every other way of computing a score must be exactly the same as
+ *  the operator's getScore:  specialized scorers, plans (QryPlan), the
+ *  TAAT and block evaluators, and the scoring kernels.  Each does the
+ *  same IEEE double operations in the same order as getScore (for
+ *  example, a sum of argument scores in argument order), so the scores
+ *  and rankings are bit-for-bit the same whichever is used.  Java
+ *  doesn't reorder floating-point operations, so keeping the order is
+ *  enough.
+ *  </p>
+ *  <p>
+ *  QryPlan can compile a scorer tree further, into a class generated
+ *  for the tree's shape.
+ *  </p>
+ */
+public abstract class QryScorer {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The operator that does the matching, and the retrieval model.
+   */
+  protected final QrySop node;
+  protected final RetrievalModel r;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param node The operator that this scorer scores.
+   *  @param r The retrieval model.
+   */
+  protected QryScorer (QrySop node, RetrievalModel r) {
+    this.node = node;
+    this.r = r;
+  }
+
+  /**
+   *  Get the score of the document that the operator matched.
+   *  @param docid The operator's current match.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public abstract double score (int docid) throws IOException;
+
+  /**
+   *  Get the log of the score of the document that the operator
+   *  matched (see QrySop.getLogScore).
+   *  @param docid The operator's current match.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double logScore (int docid) throws IOException {
+    return Math.log (this.score (docid));
+  }
+
+  /**
+   *  Get the log of the operator's default score for a document.
+   *  @param docid The internal document id.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double logDefaultScore (int docid) throws IOException {
+    return this.node.getLogDefaultScore (this.r, docid);
+  }
+
+  /**
+   *  Indicates whether the operator's current match is a document.
+   *  The parent positioned the operator with nextDoc or advance, so
+   *  its position is read without a call.
+   *  @param docid The internal document id.
+   *  @return True if the operator matches the document.
+   */
+  public final boolean matches (int docid) {
+    return (this.node.docID () == docid);
+  }
+
+  /**
+   *  A scorer for a BM25 #SUM.  A flat #SUM over terms gets a scorer
+   *  whose arguments all have the same final class, so the argument
+   *  loop makes no megamorphic calls.
+   *  @param node The #SUM operator.
+   *  @param r The retrieval model.
+   *  @param args The arguments' scorers.
+   *  @return The scorer.
+   */
+  static QryScorer bm25Sum (QrySop node, RetrievalModel r, QryScorer[] args) {
+
+    Bm25TermScorer[] terms = new Bm25TermScorer[args.length];
+
+    for (int i = 0; i < args.length; i++) {
+      if (! (args[i] instanceof Bm25TermScorer)) {
+        return new Bm25SumScorer (node, r, args);
+      }
+
+      terms[i] = (Bm25TermScorer) args[i];
+    }
+
+    return new Bm25FlatSumScorer (node, r, terms);
+  }
+
+  /**
+   *  A scorer for an Indri #AND or #WAND.  A flat operator over terms
+   *  gets a specialized scorer, as in bm25Sum.
+   *  @param node The operator.
+   *  @param r The retrieval model.
+   *  @param args The arguments' scorers.
+   *  @param exponents The exponent of each argument.
+   *  @return The scorer.
+   */
+  static QryScorer indriAnd (QrySop node, RetrievalModel r, QryScorer[] args,
+                             double[] exponents) {
+
+    IndriTermScorer[] terms = new IndriTermScorer[args.length];
+
+    for (int i = 0; i < args.length; i++) {
+      if (! (args[i] instanceof IndriTermScorer)) {
+        return new IndriAndScorer (node, r, args, exponents);
+      }
+
+      terms[i] = (IndriTermScorer) args[i];
+    }
+
+    return new IndriFlatAndScorer (node, r, terms, exponents);
+  }
+
+  /**
+   *  Compile the arguments of an operator.
+   *  @param q An initialized operator.
+   *  @param r The retrieval model.
+   *  @return The arguments' scorers, in argument order.
+   */
+  static QryScorer[] compileArgs (Qry q, RetrievalModel r) {
+
+    QryScorer[] scorers = new QryScorer[q.args.size ()];
+
+    for (int i = 0; i < scorers.length; i++) {
+      scorers[i] = ((QrySop) q.args.get (i)).compile (r);
+    }
+
+    return scorers;
+  }
+
+  //  --------------- Scorers ---------------------------------------
+
+  /**
+   *  Scores a document by calling the operator's getScore.
+   */
+  public static final class OperatorScorer extends QryScorer {
+
+    public OperatorScorer (QrySop node, RetrievalModel r) {
+      super (node, r);
+    }
+
+    public double score (int docid) throws IOException {
+      return this.node.getScore (this.r);
+    }
+
+    @Override
+    public double logScore (int docid) throws IOException {
+      return this.node.getLogScore (this.r);
+    }
+  }
+
+  /**
+   *  BM25 #SCORE:  idf * tf / (tf + k_1 * (oneMinusB + b * (docLen / avgLength))).
+   */
+  public static final class Bm25TermScorer extends QryScorer {
+    final QryIop arg;
+    private final IndexContext index;
+    private final int fieldOrdinal;
+    private final double idf;
+    private final double k1;
+    private final double b;
+    private final double oneMinusB;
+    private final double avgLength;
+
+    Bm25TermScorer (QrySop node, RetrievalModel r, QryIop arg,
+                    IndexContext index, int fieldOrdinal, double idf,
+                    double k1, double b, double oneMinusB, double avgLength) {
+      super (node, r);
+      this.arg = arg;
+      this.index = index;
+      this.fieldOrdinal = fieldOrdinal;
+      this.idf = idf;
+      this.k1 = k1;
+      this.b = b;
+      this.oneMinusB = oneMinusB;
+      this.avgLength = avgLength;
+    }
+
+    public double score (int docid) throws IOException {
+      double tf = this.arg.docIteratorGetMatchTf ();
+      double docLen = this.index.getFieldLength (this.fieldOrdinal, docid);
+      return this.idf *
+        (tf / (tf + this.k1 * (this.oneMinusB + this.b * (docLen / this.avgLength))));
+    }
+  }
+
+  /**
+   *  Indri #SCORE:  oneMinusLambda * (tf + muMle) / (docLen + mu) + lambdaMle.
+   *  Default scores come from the operator's table.
+   */
+  public static final class IndriTermScorer extends QryScorer {
+    final QryIop arg;
+    private final IndexContext index;
+    private final int fieldOrdinal;
+    private final double oneMinusLambda;
+    private final double muMle;
+    private final double mu;
+    private final double lambdaMle;
+
+    IndriTermScorer (QrySop node, RetrievalModel r, QryIop arg,
+                     IndexContext index, int fieldOrdinal,
+                     double oneMinusLambda, double muMle, double mu,
+                     double lambdaMle) {
+      super (node, r);
+      this.arg = arg;
+      this.index = index;
+      this.fieldOrdinal = fieldOrdinal;
+      this.oneMinusLambda = oneMinusLambda;
+      this.muMle = muMle;
+      this.mu = mu;
+      this.lambdaMle = lambdaMle;
+    }
+
+    public double score (int docid) throws IOException {
+      double docLength = this.index.getFieldLength (this.fieldOrdinal, docid);
+      double tf = this.arg.docIteratorGetMatchTf ();
+      return this.oneMinusLambda * (tf + this.muMle) / (docLength + this.mu) + this.lambdaMle;
+    }
+  }
+
+  /**
+   *  BM25 #SUM:  the sum of the scores of the arguments that match.
+   */
+  public static final class Bm25SumScorer extends QryScorer {
+    final QryScorer[] args;
+
+    Bm25SumScorer (QrySop node, RetrievalModel r, QryScorer[] args) {
+      super (node, r);
+      this.args = args;
+    }
+
+    public double score (int docid) throws IOException {
+      double score = 0;
+
+      for (QryScorer q : this.args) {
+        if (q.matches (docid)) {
+          score += q.score (docid);
+        }
+      }
+
+      return score;
+    }
+  }
+
+  /**
+   *  BM25 #SUM over terms.  A term's operator matches the document
+   *  exactly when its inverted list is at the document, so the lists'
+   *  positions are checked directly.
+   */
+  public static final class Bm25FlatSumScorer extends QryScorer {
+    final Bm25TermScorer[] args;
+
+    Bm25FlatSumScorer (QrySop node, RetrievalModel r, Bm25TermScorer[] args) {
+      super (node, r);
+      this.args = args;
+    }
+
+    public double score (int docid) throws IOException {
+      double score = 0;
+
+      for (Bm25TermScorer q : this.args) {
+        if (q.arg.docID () == docid) {
+          score += q.score (docid);
+        }
+      }
+
+      return score;
+    }
+  }
+
+  /**
+   *  Indri #AND and #WAND over terms, checked as in Bm25FlatSumScorer.
+   */
+  public static final class IndriFlatAndScorer extends QryScorer {
+    final IndriTermScorer[] args;
+    final double[] exponents;
+
+    IndriFlatAndScorer (QrySop node, RetrievalModel r, IndriTermScorer[] args,
+                        double[] exponents) {
+      super (node, r);
+      this.args = args;
+      this.exponents = exponents;
+    }
+
+    public double score (int docid) throws IOException {
+      return Math.exp (this.logScore (docid));
+    }
+
+    @Override
+    public double logScore (int docid) throws IOException {
+      double logScore = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        IndriTermScorer q = this.args[i];
+
+        if (q.arg.docID () == docid) {
+          logScore += this.exponents[i] * Math.log (q.score (docid));
+        } else {
+          logScore += this.exponents[i] * q.logDefaultScore (docid);
+        }
+      }
+
+      return logScore;
+    }
+  }
+
+  /**
+   *  Indri #AND and #WAND:  the exp of the weighted sum of the logs of
+   *  the arguments' scores, or default scores for arguments that don't
+   *  match.
+   */
+  public static final class IndriAndScorer extends QryScorer {
+    final QryScorer[] args;
+    final double[] exponents;
+
+    IndriAndScorer (QrySop node, RetrievalModel r, QryScorer[] args,
+                    double[] exponents) {
+      super (node, r);
+      this.args = args;
+      this.exponents = exponents;
+    }
+
+    public double score (int docid) throws IOException {
+      return Math.exp (this.logScore (docid));
+    }
+
+    @Override
+    public double logScore (int docid) throws IOException {
+      double logScore = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        QryScorer q = this.args[i];
+
+        if (q.matches (docid)) {
+          logScore += this.exponents[i] * q.logScore (docid);
+        } else {
+          logScore += this.exponents[i] * q.logDefaultScore (docid);
+        }
+      }
+
+      return logScore;
+    }
+  }
+}
@@ -29,14 +29,86 @@ public abstract class QrySop extends Qry {
    *  is fully evaluated, and the results are stored in an internal
    *  inverted list that may be accessed via the internal iterator.
    *  @param r A retrieval model that guides initialization
+   *  @param index The index to evaluate the query against
    *  @throws IOException Error accessing the Lucene index.
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(RetrievalModel r, IndexContext index) throws IOException {
+    this.index = index;
     for (Qry q_i: this.args) {
-      q_i.initialize (r);
+      q_i.initialize (r, index);
     }
   }
+  /**
+   *  Get an upper bound on the score that this query operator can
+   *  give any document.  Dynamic pruning uses it to skip documents
+   *  that can't enter the result list.  Operators that can't bound
+   *  their scores return positive infinity.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The maximum possible score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getMaxScore (RetrievalModel r) throws IOException {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   *  Get an upper bound on the default score (see getDefaultScore)
+   *  that this query operator can give any document.  Operators that
+   *  can't bound their default scores return positive infinity.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The maximum possible default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getMaxDefaultScore (RetrievalModel r) throws IOException {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   *  Tell the query operator the lowest score that a document needs
+   *  to enter the result list.  Operators that support dynamic pruning
+   *  may skip documents that score less; others ignore it.
+   *  @param threshold The lowest score that can enter the result list.
+   */
+  public void setScoreThreshold (double threshold) {
+  }
+
+  /**
+   *  Compile the initialized query operator and its arguments into a
+   *  tree of scorers for a retrieval model (see QryScorer).  Operators
+   *  that don't have a specialized scorer score with getScore.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The scorer.
+   */
+  public QryScorer compile (RetrievalModel r) {
+    return new QryScorer.OperatorScorer (this, r);
+  }
+
   // this method is for Indri Retirval Model
   public abstract double getDefaultScore (RetrievalModel r, int docid) throws IOException;
 
+  /**
+   *  Get the log of the score of the document that docIteratorHasMatch
+   *  matched.  Indri operators that combine their arguments' scores
+   *  multiplicatively add these instead, which can't underflow.
+   *  Operators that work in the log domain override this method.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogScore (RetrievalModel r) throws IOException {
+    return Math.log (this.getScore (r));
+  }
+
+  /**
+   *  Get the log of the default score of a document (see
+   *  getDefaultScore).
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal document id.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogDefaultScore (RetrievalModel r, int docid) throws IOException {
+    return Math.log (this.getDefaultScore (r, docid));
+  }
+
 }
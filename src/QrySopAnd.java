@@ -1,19 +1,42 @@
 import java.io.IOException;
+import java.util.Arrays;
 
+/**
+ * The AND operator for all retrieval models.  For Indri, if the model
+ * enables MaxScore and the operator has been given a score threshold,
+ * documents that can't reach the threshold are skipped (see
+ * IndriMaxScore).
+ */
 public class QrySopAnd extends QrySop {
 
     /**
-     *  Indicates whether the query has a match. BM25 doesn't support; Indri allows document not having all
+     * The lowest score that can enter the result list.
+     */
+    private double scoreThreshold = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Indri MaxScore state, or null if pruning is off.
+     */
+    private IndriMaxScore maxScore = null;
+
+    /**
+     *  Find the first match at or after target. BM25 doesn't support; Indri allows document not having all
      *  terms.
      *  @param r The retrieval model that determines what is a match
-     *  @return True if the query matches, otherwise false.
+     *  @param target An internal document id.
+     *  @return The internal id of the match, or NO_MORE_DOCS.
      */
     @Override
-    public boolean docIteratorHasMatch(RetrievalModel r) {
+    protected int docIteratorSeek(RetrievalModel r, int target) {
         if(r instanceof RetrievalModelIndri) {
-            return this.docIteratorHasMatchMin(r);
+            if (this.maxScore != null && this.scoreThreshold > 0) {
+                this.docIteratorAdvanceArgsTo(target);
+                return this.maxScore.docIteratorHasMatch(this, r, this.scoreThreshold) ?
+                        this.docIteratorGetMatch() : Qry.NO_MORE_DOCS;
+            }
+            return this.docIteratorSeekMin(r, target);
         }
-        else return this.docIteratorHasMatchAll(r);
+        else return this.docIteratorSeekAll(r, target);
     }
 
     /**
@@ -81,18 +104,37 @@ public class QrySopAnd extends QrySop {
      *  @throws IOException Error accessing the Lucene index
      */
     private double getScoreIndri (RetrievalModel r) throws IOException {
-        double score = 1.0;
+        return Math.exp(this.getLogScore(r));
+    }
+
+    /**
+     *  The log of the Indri score:  the mean of the logs of the
+     *  arguments' scores (or default scores, for arguments that don't
+     *  match), which doesn't underflow the way a product of
+     *  probabilities does.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The log of the document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getLogScore (RetrievalModel r) throws IOException {
+        if (!(r instanceof RetrievalModelIndri)) {
+            return Math.log(this.getScore(r));
+        }
         int docid = this.docIteratorGetMatch();
-        // do power calculation at last to speed up
+        if (this.maxScore != null && this.maxScore.hasScore(docid)) {
+            return this.maxScore.getLogScore(docid);
+        }
         double a = 1.0 / this.args.size();
+        double logScore = 0.0;
         for (Qry q : this.args) {
             if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docid) {
-                score *= ((QrySop) q).getScore(r);
+                logScore += a * ((QrySop) q).getLogScore(r);
             } else {
-                score *= ((QrySop) q).getDefaultScore(r, docid);
+                logScore += a * ((QrySop) q).getLogDefaultScore(r, docid);
             }
         }
-        return Math.pow(score, a);
+        return logScore;
     }
 
     /**
@@ -103,14 +145,126 @@ public class QrySopAnd extends QrySop {
      * @throws IOException
      */
     public double getDefaultScore (RetrievalModel r, int docid) throws IOException {
-        double score = 1.0;
+        return Math.exp(this.getLogDefaultScore(r, docid));
+    }
+
+    /**
+     *  The log of the Indri default score:  the mean of the logs of the
+     *  arguments' default scores.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param docid The internal document id.
+     *  @return The log of the default score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getLogDefaultScore (RetrievalModel r, int docid) throws IOException {
+        double a = 1.0 / this.args.size();
+        double logScore = 0.0;
+        for (Qry q : this.args) {
+            logScore += a * ((QrySop) q).getLogDefaultScore(r, docid);
+        }
+        return logScore;
+    }
+
+    /**
+     * The Indri upper bound is the geometric mean of the arguments'
+     * bounds, each the larger of its score and default score bounds.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     * @return The maximum possible score.
+     * @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getMaxScore(RetrievalModel r) throws IOException {
+        if (!(r instanceof RetrievalModelIndri)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double a = 1.0 / this.args.size();
+        double logScore = 0.0;
+        for (Qry q : this.args) {
+            logScore += a * Math.log(Math.max(((QrySop) q).getMaxScore(r), ((QrySop) q).getMaxDefaultScore(r)));
+        }
+        return Math.exp(logScore);
+    }
+
+    /**
+     * The Indri default score bound is the geometric mean of the
+     * arguments' default score bounds.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     * @return The maximum possible default score.
+     * @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getMaxDefaultScore(RetrievalModel r) throws IOException {
+        if (!(r instanceof RetrievalModelIndri)) {
+            return Double.POSITIVE_INFINITY;
+        }
         double a = 1.0 / this.args.size();
-        for (int i = 0; i < this.args.size(); i++) {
-            Qry q = this.args.get(i);
-            score *= ((QrySopScore) q).getDefaultScore(r, docid);
+        double logScore = 0.0;
+        for (Qry q : this.args) {
+            logScore += a * Math.log(((QrySop) q).getMaxDefaultScore(r));
         }
+        return Math.exp(logScore);
+    }
+
+    /**
+     * Initialize the query operator and its arguments.  If the Indri
+     * model enables MaxScore, compute the arguments' bounds.
+     *
+     * @param r     A retrieval model that guides initialization
+     * @param index The index to evaluate the query against
+     * @throws IOException Error accessing the Lucene index.
+     */
+    @Override
+    public void initialize(RetrievalModel r, IndexContext index) throws IOException {
+        super.initialize(r, index);
+
+        this.maxScore = null;
+        this.scoreThreshold = Double.NEGATIVE_INFINITY;
 
-        return Math.pow(score, a);
+        if (r instanceof RetrievalModelIndri && ((RetrievalModelIndri) r).getMaxScore()) {
+            double[] exponents = new double[this.args.size()];
+            Arrays.fill(exponents, 1.0 / this.args.size());
+            this.maxScore = IndriMaxScore.create(this.args, exponents, r);
+        }
+    }
+
+    /**
+     * Compile to an Indri scorer.  An operator that prunes caches the
+     * scores that it computes while matching, so it scores itself.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     * @return The scorer.
+     */
+    @Override
+    public QryScorer compile(RetrievalModel r) {
+        if (!(r instanceof RetrievalModelIndri) || this.maxScore != null) {
+            return super.compile(r);
+        }
+        double[] exponents = new double[this.args.size()];
+        Arrays.fill(exponents, 1.0 / this.args.size());
+        return QryScorer.indriAnd(this, r, QryScorer.compileArgs(this, r), exponents);
+    }
+
+    /**
+     * Give a copy its own scratch space.
+     */
+    @Override
+    protected void copyIteratorState() {
+        if (this.maxScore != null) {
+            this.maxScore = this.maxScore.copy();
+        }
+    }
+
+    /**
+     * Remember the lowest score that can enter the result list.
+     *
+     * @param threshold The lowest score that can enter the result list.
+     */
+    @Override
+    public void setScoreThreshold(double threshold) {
+        this.scoreThreshold = threshold;
     }
 
 }
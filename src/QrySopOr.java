@@ -10,12 +10,13 @@ import java.io.*;
 public class QrySopOr extends QrySop {
 
   /**
-   *  Indicates whether the query has a match.
+   *  Find the first match at or after target.
    *  @param r The retrieval model that determines what is a match
-   *  @return True if the query matches, otherwise false.
+   *  @param target An internal document id.
+   *  @return The internal id of the match, or NO_MORE_DOCS.
    */
-  public boolean docIteratorHasMatch (RetrievalModel r) {
-    return this.docIteratorHasMatchMin (r);
+  protected int docIteratorSeek (RetrievalModel r, int target) {
+    return this.docIteratorSeekMin (r, target);
   }
 
   /**
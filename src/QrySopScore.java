@@ -4,6 +4,7 @@
 
 import java.io.*;
 import java.lang.IllegalArgumentException;
+import java.util.Arrays;
 
 /**
  *  The SCORE operator for all retrieval models.
@@ -12,16 +13,48 @@ public class QrySopScore extends QrySop {
 
     /**
      *  Document-independent values that should be determined just once.
-     *  Some retrieval models have these, some don't.
+     *  Some retrieval models have these, some don't.  They are computed
+     *  by initialize, so that scoring a document only needs its tf and
+     *  field length.  Each one keeps the grouping of the original
+     *  formula, so scores don't change.
      */
+    private String field;
+    private int fieldOrdinal;
+
+    //  BM25:  idf * tf / (tf + k_1 * (bm25OneMinusB + b * (docLen / avgLength)))
+    private double bm25Idf;
+    private double bm25AvgLength;
+    private double bm25K1;
+    private double bm25B;
+    private double bm25OneMinusB;
+
+    //  Indri:  oneMinusLambda * (tf + muMle) / (docLen + mu) + lambdaMle
+    //  and, when tf=0, defaultNumerator / (docLen + mu) + lambdaMle
+    private double indriMu;
+    private double indriOneMinusLambda;
+    private double indriMuMle;
+    private double indriLambdaMle;
+    private double indriDefaultNumerator;
+
+    /**
+     * The default score depends only on the document length, so the
+     * default scores (and their logs) of the lengths that have been seen
+     * are remembered in tables indexed by length.  A NaN entry hasn't
+     * been computed yet.  Lengths of MAX_DEFAULT_TABLE_LENGTH or more are
+     * rare, and are computed every time.
+     */
+    private static final int MAX_DEFAULT_TABLE_LENGTH = 1 << 14;
+    private double[] indriDefaults;
+    private double[] indriLogDefaults;
 
     /**
-     *  Indicates whether the query has a match.
+     *  Find the first match at or after target.
      *  @param r The retrieval model that determines what is a match
-     *  @return True if the query matches, otherwise false.
+     *  @param target An internal document id.
+     *  @return The internal id of the match, or NO_MORE_DOCS.
      */
-    public boolean docIteratorHasMatch(RetrievalModel r) {
-        return this.docIteratorHasMatchFirst(r);
+    protected int docIteratorSeek(RetrievalModel r, int target) {
+        return this.docIteratorSeekFirst(r, target);
     }
 
     /**
@@ -70,7 +103,7 @@ public class QrySopScore extends QrySop {
         if (!this.docIteratorHasMatchCache()) {
             return 0.0;
         } else {
-            return this.getArg(0).docIteratorGetMatchPosting().tf;
+            return this.getArg(0).docIteratorGetMatchTf();
         }
     }
 
@@ -84,22 +117,92 @@ public class QrySopScore extends QrySop {
         double score = 0;
         Qry q = this.args.get(0);
         if (q.docIteratorHasMatch(r)) {
-            int df = ((QryIop) q).getDf();
-            //Jamie's code does this
-            double idf = Math.max(Math.log((Idx.getNumDocs() - df + 0.5) / (df + 0.5)), 0);
-            double avgLength = (double) Idx.getSumOfFieldLengths(((QryIop) q).field) / Idx.getDocCount(((QryIop) q).field);
-            double tf = (((QryIop) q).docIteratorGetMatchPosting().tf);
-            double k_1 = ((RetrievalModelBM25) r).getK1();
-            double b = ((RetrievalModelBM25) r).getB();
-            //double k_3 = ((RetrievalModelBM25) r).getK3();
-            double docLen = (Idx.getFieldLength(((QryIop) q).field, q.docIteratorGetMatch()));
+            double tf = (((QryIop) q).docIteratorGetMatchTf());
+            double docLen = (this.index.getFieldLength(this.fieldOrdinal, q.docIteratorGetMatch()));
             double userWeight = 1.0; // According to write-up, qtf in example query string is always 1, so user weight = 1
-            double tfWeight = tf / (tf + k_1 * (1.0 - b + b * (docLen / avgLength)));
-            score = idf * tfWeight * userWeight;
+            double tfWeight = tf / (tf + this.bm25K1 * (this.bm25OneMinusB + this.bm25B * (docLen / this.bm25AvgLength)));
+            score = this.bm25Idf * tfWeight * userWeight;
         }
         return score;
     }
 
+    /**
+     * Score a block of postings of this operator's argument, with the
+     * same arithmetic as getScore (see ScoreKernels).  The documents'
+     * field lengths are fetched together.  BM25 and Indri are supported.
+     * @param r The retrieval model that determines how scores are calculated.
+     * @param docids The documents of the postings.
+     * @param tfs The term frequencies of the postings.
+     * @param n The number of postings.
+     * @param lengths Scratch space for n field lengths.
+     * @param scores Receives the n scores.
+     * @throws IOException Error accessing the Lucene index
+     */
+    public void getScores(RetrievalModel r, int[] docids, int[] tfs, int n, int[] lengths, double[] scores)
+            throws IOException {
+        this.index.getFieldLengths(this.fieldOrdinal, docids, n, lengths);
+        if (r instanceof RetrievalModelBM25) {
+            ScoreKernels.get().bm25(this.bm25Idf, this.bm25K1, this.bm25B, this.bm25OneMinusB,
+                    this.bm25AvgLength, tfs, lengths, n, scores);
+        } else if (r instanceof RetrievalModelIndri) {
+            ScoreKernels.get().indri(this.indriOneMinusLambda, this.indriMuMle, this.indriMu,
+                    this.indriLambdaMle, tfs, lengths, n, scores);
+        } else {
+            throw new IllegalArgumentException
+                    (r.getClass().getName() + " doesn't support block scoring.");
+        }
+    }
+
+    /**
+     * Get an upper bound on the score of any document.  BM25 and Indri
+     * are supported.  The BM25 tf weight grows with tf and shrinks with
+     * the document length, and a document that contains the term tf
+     * times is at least tf long, so the bound uses the largest tf and
+     * the larger of tf and the shortest document length.  The Indri
+     * score (tf + mu * mle) / (docLen + mu) is largest when docLen = tf,
+     * and then it grows with tf, so the bound uses the largest tf.
+     * @param r The retrieval model that determines how scores are calculated.
+     * @return The maximum possible score.
+     * @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getMaxScore(RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelIndri) {
+            double maxTf = this.getArg(0).getMaxTf();
+            return this.indriOneMinusLambda * (maxTf + this.indriMuMle) / (maxTf + this.indriMu) + this.indriLambdaMle;
+        }
+        if (!(r instanceof RetrievalModelBM25)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        QryIop q = this.getArg(0);
+        double maxTf = q.getMaxTf();
+        if (q.getDf() == 0 || maxTf == 0) {
+            return 0.0;
+        }
+        double minDocLen = Math.max(this.index.getMinFieldLength(this.field), maxTf);
+        return this.bm25Idf * maxTf /
+                (maxTf + this.bm25K1 * (this.bm25OneMinusB + this.bm25B * (minDocLen / this.bm25AvgLength)));
+    }
+
+    /**
+     * Get an upper bound on the Indri default score of any document.  The
+     * default score shrinks as the document gets longer, so the bound
+     * uses the shortest document length, which is 0 unless every document
+     * has the field.
+     * @param r The retrieval model that determines how scores are calculated.
+     * @return The maximum possible default score.
+     * @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getMaxDefaultScore(RetrievalModel r) throws IOException {
+        if (!(r instanceof RetrievalModelIndri)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double minDocLen = (this.index.getDocCount(this.field) == this.index.getMaxDoc()) ?
+                this.index.getMinFieldLength(this.field) : 0;
+        return this.indriDefaultNumerator / (minDocLen + this.indriMu) + this.indriLambdaMle;
+    }
+
     /**
      * getScore for the Indri retrieval model.
      * @param r
@@ -110,12 +213,9 @@ public class QrySopScore extends QrySop {
         double score = 1.0;
         Qry q = this.args.get(0);
         if (q.docIteratorHasMatch(r)) {
-            double mu = ((RetrievalModelIndri) r).getMu();
-            double lambda = ((RetrievalModelIndri) r).getLambda();
-            double mle = (double) (((QryIop) q).getCtf()) / (Idx.getSumOfFieldLengths(((QryIop) q).field));
-            double docLength = (double) (Idx.getFieldLength(((QryIop) q).field, q.docIteratorGetMatch()));
-            double tf = (double) (((QryIop) q).docIteratorGetMatchPosting().tf);
-            score = (1 - lambda) * (tf + mu * mle) / (docLength + mu) + lambda * mle;
+            double docLength = (double) (this.index.getFieldLength(this.fieldOrdinal, q.docIteratorGetMatch()));
+            double tf = (double) (((QryIop) q).docIteratorGetMatchTf());
+            score = this.indriOneMinusLambda * (tf + this.indriMuMle) / (docLength + this.indriMu) + this.indriLambdaMle;
         }
         return score;
     }
@@ -128,27 +228,148 @@ public class QrySopScore extends QrySop {
      * @throws IOException
      */
     public double getDefaultScore(RetrievalModel r, int docid) throws IOException {
-        Qry q = this.args.get(0);
-        double mu = ((RetrievalModelIndri) r).getMu();
-        double lambda = ((RetrievalModelIndri) r).getLambda();
-        double mle = (double) (((QryIop) q).getCtf()) / (double) (Idx.getSumOfFieldLengths(((QryIop) q).field));
-        double docLength = (double) (Idx.getFieldLength(((QryIop) q).field, docid));
-        double score = (1 - lambda) * (mu * mle) / (docLength + mu) + lambda * mle;
+        int docLength = this.index.getFieldLength(this.fieldOrdinal, docid);
+        if (docLength >= MAX_DEFAULT_TABLE_LENGTH) {
+            return this.computeDefaultScore(docLength);
+        }
+        if (this.indriDefaults == null || docLength >= this.indriDefaults.length) {
+            this.indriDefaults = growTable(this.indriDefaults, docLength);
+        }
+        double score = this.indriDefaults[docLength];
+        if (Double.isNaN(score)) {
+            score = this.computeDefaultScore(docLength);
+            this.indriDefaults[docLength] = score;
+        }
         return score;
     }
 
+    /**
+     * Get the log of the Indri default score, from the same kind of table
+     * as getDefaultScore.
+     * @param r The retrieval model that determines how scores are calculated.
+     * @param docid The internal id of the document that needs a default score.
+     * @return The log of the default score.
+     * @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getLogDefaultScore(RetrievalModel r, int docid) throws IOException {
+        int docLength = this.index.getFieldLength(this.fieldOrdinal, docid);
+        if (docLength >= MAX_DEFAULT_TABLE_LENGTH) {
+            return Math.log(this.computeDefaultScore(docLength));
+        }
+        if (this.indriLogDefaults == null || docLength >= this.indriLogDefaults.length) {
+            this.indriLogDefaults = growTable(this.indriLogDefaults, docLength);
+        }
+        double logScore = this.indriLogDefaults[docLength];
+        if (Double.isNaN(logScore)) {
+            logScore = Math.log(this.computeDefaultScore(docLength));
+            this.indriLogDefaults[docLength] = logScore;
+        }
+        return logScore;
+    }
+
+    /**
+     * The Indri default score of a document of the given length.
+     * @param docLength The length of the document's field.
+     * @return The default score.
+     */
+    private double computeDefaultScore(int docLength) {
+        return this.indriDefaultNumerator / ((double) docLength + this.indriMu) + this.indriLambdaMle;
+    }
+
+    /**
+     * Grow a default score table so that it covers a document length.
+     * @param table The table, or null.
+     * @param docLength A length below MAX_DEFAULT_TABLE_LENGTH.
+     * @return A larger copy of the table, with NaN in the new entries.
+     */
+    private static double[] growTable(double[] table, int docLength) {
+        int oldLength = (table == null) ? 0 : table.length;
+        int newLength = Math.min(Math.max(Math.max(2 * oldLength, 256), docLength + 1),
+                MAX_DEFAULT_TABLE_LENGTH);
+        double[] t = (table == null) ? new double[newLength] : Arrays.copyOf(table, newLength);
+        Arrays.fill(t, oldLength, newLength, Double.NaN);
+        return t;
+    }
+
+    /**
+     * Give a copy its own default score tables.
+     */
+    @Override
+    protected void copyIteratorState() {
+        if (this.indriDefaults != null) {
+            this.indriDefaults = this.indriDefaults.clone();
+        }
+        if (this.indriLogDefaults != null) {
+            this.indriLogDefaults = this.indriLogDefaults.clone();
+        }
+    }
+
+    /**
+     * Compile to a scorer with this term's constants.
+     * @param r The retrieval model that determines how scores are calculated.
+     * @return The scorer.
+     */
+    @Override
+    public QryScorer compile(RetrievalModel r) {
+        if (r instanceof RetrievalModelBM25) {
+            return new QryScorer.Bm25TermScorer(this, r, this.getArg(0), this.index, this.fieldOrdinal,
+                    this.bm25Idf, this.bm25K1, this.bm25B, this.bm25OneMinusB, this.bm25AvgLength);
+        } else if (r instanceof RetrievalModelIndri) {
+            return new QryScorer.IndriTermScorer(this, r, this.getArg(0), this.index, this.fieldOrdinal,
+                    this.indriOneMinusLambda, this.indriMuMle, this.indriMu, this.indriLambdaMle);
+        }
+        return super.compile(r);
+    }
+
     /**
      *  Initialize the query operator (and its arguments), including any
      *  internal iterators.  If the query operator is of type QryIop, it
      *  is fully evaluated, and the results are stored in an internal
      *  inverted list that may be accessed via the internal iterator.
      *  @param r A retrieval model that guides initialization
+     *  @param index The index to evaluate the query against
      *  @throws IOException Error accessing the Lucene index.
      */
-    public void initialize(RetrievalModel r) throws IOException {
+    public void initialize(RetrievalModel r, IndexContext index) throws IOException {
 
+        this.index = index;
         Qry q = this.args.get(0);
-        q.initialize(r);
+
+        //  Per-segment evaluation initializes the argument first, so
+        //  that the df and ctf of every segment can be added up before
+        //  the constants below are computed.  Don't evaluate it again.
+
+        if (!(((QryIop) q).hasCollectionStatistics() && q.index == index)) {
+            q.initialize(r, index);
+        }
+
+        //  The argument's df and ctf are known now, so the term-level
+        //  constants of the retrieval model can be frozen.
+
+        this.field = ((QryIop) q).getField();
+        this.fieldOrdinal = this.index.getFieldOrdinal(this.field);
+
+        if (r instanceof RetrievalModelBM25) {
+            int df = ((QryIop) q).getDf();
+            //Jamie's code does this
+            this.bm25Idf = Math.max(Math.log((this.index.getNumDocs() - df + 0.5) / (df + 0.5)), 0);
+            this.bm25AvgLength = (double) this.index.getSumOfFieldLengths(this.field) / this.index.getDocCount(this.field);
+            this.bm25K1 = ((RetrievalModelBM25) r).getK1();
+            this.bm25B = ((RetrievalModelBM25) r).getB();
+            this.bm25OneMinusB = 1.0 - this.bm25B;
+        } else if (r instanceof RetrievalModelIndri) {
+            double mu = ((RetrievalModelIndri) r).getMu();
+            double lambda = ((RetrievalModelIndri) r).getLambda();
+            double mle = (double) (((QryIop) q).getCtf()) / (double) (this.index.getSumOfFieldLengths(this.field));
+            this.indriMu = mu;
+            this.indriOneMinusLambda = 1 - lambda;
+            this.indriMuMle = mu * mle;
+            this.indriLambdaMle = lambda * mle;
+            this.indriDefaultNumerator = (1 - lambda) * (mu * mle);
+        }
+        this.indriDefaults = null;
+        this.indriLogDefaults = null;
     }
 
 }
@@ -1,18 +1,250 @@
 import java.io.*;
+import java.util.*;
 
 /**
- * The AND operator for all retrieval models.
+ * The SUM operator for the BM25 retrieval model.
+ * <p>
+ * When the BM25 model enables MaxScore and the operator has been given a
+ * score threshold (see setScoreThreshold), the arguments are split into
+ * "essential" and "non-essential" arguments.  The non-essential arguments
+ * are those with the smallest score upper bounds whose bounds add up to
+ * less than the threshold, so a document that matches only them can't
+ * enter the result list.  Candidate documents come from the essential
+ * arguments; the non-essential arguments are only advanced to candidates,
+ * and scoring stops as soon as the partial score plus the remaining
+ * bounds falls below the threshold.  The scores of the documents that are
+ * returned are the same as in exhaustive evaluation.
+ * </p><p>
+ * If the model also has a BlockMaxIndex, term arguments use its per-block
+ * bounds (Block-Max MaxScore).  The sum of the bounds of the blocks that
+ * contain a candidate holds for every docid up to the end of the shortest
+ * of those blocks, so if it is below the threshold, the essential
+ * arguments skip past all of those docids at once.
+ * </p>
  */
 public class QrySopSum extends QrySop {
 
     /**
-     * Indicates whether the query has a match.
+     * Upper bounds are inflated by this relative amount so that floating
+     * point rounding can never prune a document that would have entered
+     * the result list.
+     */
+    private static final double BOUND_SLACK = 1e-9;
+
+    /**
+     * The lowest score that can enter the result list.
+     */
+    private double scoreThreshold = Double.NEGATIVE_INFINITY;
+
+    /**
+     * MaxScore state.  order lists the arguments by ascending upper bound;
+     * boundSums[k] is the (inflated) sum of the bounds of order[0..k-1].
+     */
+    private int[] order = null;
+    private double[] boundSums = null;
+    private double[] argScores = null;
+    private boolean[] argMatches = null;
+    private int maxScoreDocid = Qry.INVALID_DOCID;
+    private double maxScoreScore = 0;
+
+    /**
+     * Block-Max state.  blocks[i] is null for arguments that have no block
+     * bounds, and they use bounds[i] everywhere.  blockCursors[i] is the
+     * block that the last candidate fell in.
+     */
+    private double[] bounds = null;
+    private BlockMaxIndex.Blocks[] blocks = null;
+    private int[] blockCursors = null;
+
+    /**
+     * Find the first match at or after target.
+     *
+     * @param r      The retrieval model that determines what is a match
+     * @param target An internal document id.
+     * @return The internal id of the match, or NO_MORE_DOCS.
+     */
+    protected int docIteratorSeek(RetrievalModel r, int target) {
+        if (this.order != null && this.scoreThreshold != Double.NEGATIVE_INFINITY) {
+            this.docIteratorAdvanceArgsTo(target);
+            return this.docIteratorHasMatchMaxScore(r) ? this.docIteratorGetMatch() : Qry.NO_MORE_DOCS;
+        }
+        return this.docIteratorSeekMin(r, target);
+    }
+
+    /**
+     * An instantiation of docIteratorHasMatch that uses MaxScore to skip
+     * documents that can't score at least scoreThreshold.  The score of
+     * the match is cached for getScore.
      *
      * @param r The retrieval model that determines what is a match
      * @return True if the query matches, otherwise false.
+     * @throws UncheckedIOException Error accessing the Lucene index
+     */
+    private boolean docIteratorHasMatchMaxScore(RetrievalModel r) {
+
+        if (this.docIteratorHasMatchCache()) {
+            return true;
+        }
+
+        double threshold = this.scoreThreshold;
+        int n = this.args.size();
+
+        //  Arguments order[0..p-1] are non-essential.  If every argument
+        //  is non-essential, no document can enter the result list.
+
+        int p = 0;
+        while (p < n && this.boundSums[p + 1] < threshold) {
+            p++;
+        }
+        if (p == n) {
+            return false;
+        }
+
+        try {
+            while (true) {
+
+                //  The candidate is the smallest docid of the essential arguments.
+
+                int docid = Qry.INVALID_DOCID;
+                for (int k = p; k < n; k++) {
+                    Qry q = this.args.get(this.order[k]);
+                    if (q.docIteratorHasMatch(r)) {
+                        int q_docid = q.docIteratorGetMatch();
+                        if (docid == Qry.INVALID_DOCID || q_docid < docid) {
+                            docid = q_docid;
+                        }
+                    }
+                }
+                if (docid == Qry.INVALID_DOCID) {
+                    return false;
+                }
+
+                //  Skip to the end of the current blocks if they can't
+                //  reach the threshold.
+
+                if (this.blocks != null) {
+                    int blockEnd = this.blockBoundEnd(docid, threshold);
+                    if (blockEnd != Qry.INVALID_DOCID) {
+                        if (blockEnd == Integer.MAX_VALUE) {
+                            return false;
+                        }
+                        for (int k = p; k < n; k++) {
+                            this.args.get(this.order[k]).docIteratorAdvancePast(blockEnd);
+                        }
+                        continue;
+                    }
+                }
+
+                //  Score the essential arguments, then the non-essential
+                //  arguments from the largest bound down, stopping when the
+                //  document can't reach the threshold.
+
+                Arrays.fill(this.argMatches, false);
+                double partial = 0;
+                for (int k = n - 1; k >= p; k--) {
+                    partial += this.scoreArg(this.order[k], docid, r, false);
+                }
+
+                boolean pruned = false;
+                for (int k = p - 1; k >= 0; k--) {
+                    if (partial + this.boundSums[k + 1] < threshold) {
+                        pruned = true;
+                        break;
+                    }
+                    partial += this.scoreArg(this.order[k], docid, r, true);
+                }
+
+                if (!pruned) {
+
+                    //  Add the scores in argument order, as getScoreBM25
+                    //  does, so that the score is exactly the same.
+
+                    double score = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (this.argMatches[i]) {
+                            score += this.argScores[i];
+                        }
+                    }
+
+                    if (score >= threshold) {
+                        this.maxScoreDocid = docid;
+                        this.maxScoreScore = score;
+                        this.docIteratorSetMatchCache(docid);
+                        return true;
+                    }
+                }
+
+                for (int k = p; k < n; k++) {
+                    this.args.get(this.order[k]).docIteratorAdvancePast(docid);
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Check whether the blocks that contain a document can reach the
+     * threshold.
+     *
+     * @param docid     The internal document id.
+     * @param threshold The lowest score that can enter the result list.
+     * @return The last docid that the blocks cover if their bounds are below
+     * the threshold (Integer.MAX_VALUE if that is every remaining docid),
+     * otherwise Qry.INVALID_DOCID.
+     */
+    private int blockBoundEnd(int docid, double threshold) {
+        double bound = 0;
+        int end = Integer.MAX_VALUE;
+
+        //  Block docids are index-wide; a segment's docids start at docBase.
+
+        int docBase = this.index.getDocBase();
+
+        for (int i = 0; i < this.blocks.length; i++) {
+            BlockMaxIndex.Blocks b_i = this.blocks[i];
+            if (b_i == null) {
+                bound += this.bounds[i];
+                continue;
+            }
+            int k = this.blockCursors[i];
+            while (k < b_i.lastDocids.length && b_i.lastDocids[k] < docid + docBase) {
+                k++;
+            }
+            this.blockCursors[i] = k;
+            if (k < b_i.lastDocids.length) {
+                bound += b_i.maxScores[k];
+                end = Math.min(end, b_i.lastDocids[k] - docBase);
+            }
+        }
+
+        if (bound * (1.0 + BOUND_SLACK) < threshold) {
+            return end;
+        }
+        return Qry.INVALID_DOCID;
+    }
+
+    /**
+     * Score the i'th argument for a document, if it matches the document.
+     *
+     * @param i       The index of the argument.
+     * @param docid   The internal document id.
+     * @param r       The retrieval model that determines how scores are calculated.
+     * @param advance True if the argument must be advanced to the document first.
+     * @return The argument's score, or 0 if it doesn't match the document.
+     * @throws IOException Error accessing the Lucene index
      */
-    public boolean docIteratorHasMatch(RetrievalModel r) {
-        return this.docIteratorHasMatchMin(r);
+    private double scoreArg(int i, int docid, RetrievalModel r, boolean advance) throws IOException {
+        QrySop q = (QrySop) this.args.get(i);
+        if (advance) {
+            q.docIteratorAdvanceTo(docid);
+        }
+        if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docid) {
+            this.argScores[i] = q.getScore(r);
+            this.argMatches[i] = true;
+            return this.argScores[i];
+        }
+        return 0;
     }
 
     /**
@@ -37,6 +269,10 @@ public class QrySopSum extends QrySop {
         }
 
         int doc_id = this.docIteratorGetMatch();
+        if (doc_id == this.maxScoreDocid) {
+            return this.maxScoreScore;
+        }
+
         double score = 0;
         for (int i = 0; i < this.args.size(); i++) {
             QrySop q = (QrySop) this.args.get(i);
@@ -47,10 +283,142 @@ public class QrySopSum extends QrySop {
         return score;
     }
 
+    /**
+     * The maximum score is the sum of the arguments' maximum scores.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     * @return The maximum possible score.
+     * @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getMaxScore(RetrievalModel r) throws IOException {
+        double max = 0;
+        for (int i = 0; i < this.args.size(); i++) {
+            max += ((QrySop) this.args.get(i)).getMaxScore(r);
+        }
+        return max;
+    }
+
+    /**
+     * Compile to a BM25 sum scorer.  An operator that prunes caches the
+     * scores that it computes while matching, so it scores itself.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     * @return The scorer.
+     */
+    @Override
+    public QryScorer compile(RetrievalModel r) {
+        if (!(r instanceof RetrievalModelBM25) || this.order != null) {
+            return super.compile(r);
+        }
+        return QryScorer.bm25Sum(this, r, QryScorer.compileArgs(this, r));
+    }
+
+    /**
+     * Initialize the query operator and its arguments.  If the BM25 model
+     * enables MaxScore, compute and sort the arguments' score bounds.
+     *
+     * @param r     A retrieval model that guides initialization
+     * @param index The index to evaluate the query against
+     * @throws IOException Error accessing the Lucene index.
+     */
+    @Override
+    public void initialize(RetrievalModel r, IndexContext index) throws IOException {
+        super.initialize(r, index);
+
+        this.order = null;
+        this.blocks = null;
+        this.scoreThreshold = Double.NEGATIVE_INFINITY;
+        this.maxScoreDocid = Qry.INVALID_DOCID;
+
+        if (!(r instanceof RetrievalModelBM25) || !((RetrievalModelBM25) r).getMaxScore()) {
+            return;
+        }
+
+        int n = this.args.size();
+        final double[] bounds = new double[n];
+        Integer[] sorted = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            bounds[i] = ((QrySop) this.args.get(i)).getMaxScore(r);
+            if (Double.isInfinite(bounds[i]) || Double.isNaN(bounds[i])) {
+                return;                 // This argument can't be bounded
+            }
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(bounds[a], bounds[b]);
+            }
+        });
+
+        this.order = new int[n];
+        this.boundSums = new double[n + 1];
+        for (int k = 0; k < n; k++) {
+            this.order[k] = sorted[k];
+            this.boundSums[k + 1] = this.boundSums[k] + bounds[sorted[k]];
+        }
+        for (int k = 1; k <= n; k++) {
+            this.boundSums[k] *= 1.0 + BOUND_SLACK;
+        }
+        this.argScores = new double[n];
+        this.argMatches = new boolean[n];
+        this.bounds = bounds;
+
+        //  Use block bounds for term arguments that the sidecar covers.
+        //  A list whose df has changed since the sidecar was built is
+        //  not trusted.
+
+        BlockMaxIndex blockMax = ((RetrievalModelBM25) r).getBlockMaxIndex();
+        if (blockMax == null) {
+            return;
+        }
+        BlockMaxIndex.Blocks[] argBlocks = new BlockMaxIndex.Blocks[n];
+        boolean found = false;
+        for (int i = 0; i < n; i++) {
+            Qry q = this.args.get(i);
+            if (q instanceof QrySopScore && q.args.get(0) instanceof QryIopTerm) {
+                QryIopTerm t = (QryIopTerm) q.args.get(0);
+                BlockMaxIndex.Blocks b_i = blockMax.getBlocks(t.getTerm(), t.getField());
+                if (b_i != null && b_i.df == t.getDf()) {
+                    argBlocks[i] = b_i;
+                    found = true;
+                }
+            }
+        }
+        if (found) {
+            this.blocks = argBlocks;
+            this.blockCursors = new int[n];
+        }
+    }
+
+    /**
+     * Give a copy its own scratch arrays.  The bounds are shared.
+     */
+    @Override
+    protected void copyIteratorState() {
+        if (this.argScores != null) {
+            this.argScores = this.argScores.clone();
+            this.argMatches = this.argMatches.clone();
+        }
+        if (this.blockCursors != null) {
+            this.blockCursors = this.blockCursors.clone();
+        }
+    }
+
+    /**
+     * Remember the lowest score that can enter the result list.
+     *
+     * @param threshold The lowest score that can enter the result list.
+     */
+    @Override
+    public void setScoreThreshold(double threshold) {
+        this.scoreThreshold = threshold;
+    }
+
     // This method is never used, only for eliminating error.
     @Override
     public double getDefaultScore(RetrievalModel r, int docid) {
         return 0;
     }
 
-}
\ No newline at end of file
+}
@@ -14,6 +14,12 @@ abstract class QrySopW extends QrySop {
 
     double weightSum = 0;
 
+    /**
+     * Each weight divided by weightSum, or null if they haven't been
+     * computed since the last weight was added.
+     */
+    private double[] normalizedWeights = null;
+
     /**
      * This method is called when the query string is being parsed, as a term is added, the
      * corresponding weight is added too.
@@ -25,5 +31,30 @@ abstract class QrySopW extends QrySop {
         }
         this.weightSum += weight;
         this.weights.add(weight);
+        this.normalizedWeights = null;
+    }
+
+    /**
+     * Divide the weights by their sum, once, after the last weight has
+     * been added.  QryParser calls it when it finishes the operator.
+     */
+    public void normalizeWeights() {
+        double[] w = new double[this.weights.size()];
+        for (int i = 0; i < w.length; i++) {
+            w[i] = this.weights.get(i) / this.weightSum;
+        }
+        this.normalizedWeights = w;
+    }
+
+    /**
+     * Get each weight divided by the sum of the weights.
+     *
+     * @return The normalized weights.
+     */
+    double[] getNormalizedWeights() {
+        if (this.normalizedWeights == null) {
+            this.normalizeWeights();
+        }
+        return this.normalizedWeights;
     }
 }
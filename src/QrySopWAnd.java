@@ -1,19 +1,37 @@
 import java.io.*;
 
 /**
- * The AND operator for all retrieval models.
+ * The WAND operator for the Indri retrieval model.  If the model enables
+ * MaxScore and the operator has been given a score threshold, documents
+ * that can't reach the threshold are skipped (see IndriMaxScore).
  */
 public class QrySopWAnd extends QrySopW {
 
+    /**
+     * The lowest score that can enter the result list.
+     */
+    private double scoreThreshold = Double.NEGATIVE_INFINITY;
 
     /**
-     * Indicates whether the query has a match.
+     * Indri MaxScore state, or null if pruning is off.
+     */
+    private IndriMaxScore maxScore = null;
+
+
+    /**
+     * Find the first match at or after target.
      *
-     * @param r The retrieval model that determines what is a match
-     * @return True if the query matches, otherwise false.
+     * @param r      The retrieval model that determines what is a match
+     * @param target An internal document id.
+     * @return The internal id of the match, or NO_MORE_DOCS.
      */
-    public boolean docIteratorHasMatch(RetrievalModel r) {
-        return this.docIteratorHasMatchMin(r);
+    protected int docIteratorSeek(RetrievalModel r, int target) {
+        if (this.maxScore != null && this.scoreThreshold > 0) {
+            this.docIteratorAdvanceArgsTo(target);
+            return this.maxScore.docIteratorHasMatch(this, r, this.scoreThreshold) ?
+                    this.docIteratorGetMatch() : Qry.NO_MORE_DOCS;
+        }
+        return this.docIteratorSeekMin(r, target);
     }
 
     /**
@@ -41,18 +59,35 @@ public class QrySopWAnd extends QrySopW {
      * @throws IOException Error accessing the Lucene index
      */
     private double getScoreIndri(RetrievalModel r) throws IOException {
-        double score = 1;
+        return Math.exp(this.getLogScore(r));
+    }
+
+    /**
+     * The log of the Indri score:  the weighted sum of the logs of the
+     * arguments' scores (or default scores, for arguments that don't
+     * match), with the weights normalized once by QrySopW.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     * @return The log of the document score.
+     * @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getLogScore(RetrievalModel r) throws IOException {
         int docid = this.docIteratorGetMatch();
+        if (this.maxScore != null && this.maxScore.hasScore(docid)) {
+            return this.maxScore.getLogScore(docid);
+        }
+        double[] w = this.getNormalizedWeights();
+        double logScore = 0.0;
         for (int i = 0; i < this.args.size(); i++) {
             QrySop q = (QrySop) this.args.get(i);
-            double weight = this.weights.get(i);
             if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docid) {
-                score *= Math.pow(q.getScore(r), weight / this.weightSum);
+                logScore += w[i] * q.getLogScore(r);
             } else {
-                score *= Math.pow(q.getDefaultScore(r, docid), weight / this.weightSum);
+                logScore += w[i] * q.getLogDefaultScore(r, docid);
             }
         }
-        return score;
+        return logScore;
     }
 
     /**
@@ -63,13 +98,125 @@ public class QrySopWAnd extends QrySopW {
      * @return
      */
     public double getDefaultScore(RetrievalModel r, int docid) throws IOException {
-        double score = 1;
+        return Math.exp(this.getLogDefaultScore(r, docid));
+    }
+
+    /**
+     * The log of the Indri default score:  the weighted sum of the logs
+     * of the arguments' default scores.
+     *
+     * @param r     The retrieval model that determines how scores are calculated.
+     * @param docid The internal document id.
+     * @return The log of the default score.
+     * @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getLogDefaultScore(RetrievalModel r, int docid) throws IOException {
+        double[] w = this.getNormalizedWeights();
+        double logScore = 0.0;
         for (int i = 0; i < this.args.size(); i++) {
-            Qry q = this.args.get(i);
-            double weight = this.weights.get(i);
-            score *= Math.pow(((QrySop) q).getDefaultScore(r, docid), weight / this.weightSum);
+            logScore += w[i] * ((QrySop) this.args.get(i)).getLogDefaultScore(r, docid);
         }
-        return score;
+        return logScore;
+    }
+
+    /**
+     * The Indri upper bound is the weighted geometric mean of the
+     * arguments' bounds, each the larger of its score and default score
+     * bounds.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     * @return The maximum possible score.
+     * @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getMaxScore(RetrievalModel r) throws IOException {
+        if (!(r instanceof RetrievalModelIndri)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double[] w = this.getNormalizedWeights();
+        double logScore = 0.0;
+        for (int i = 0; i < this.args.size(); i++) {
+            QrySop q = (QrySop) this.args.get(i);
+            logScore += w[i] * Math.log(Math.max(q.getMaxScore(r), q.getMaxDefaultScore(r)));
+        }
+        return Math.exp(logScore);
+    }
+
+    /**
+     * The Indri default score bound is the weighted geometric mean of the
+     * arguments' default score bounds.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     * @return The maximum possible default score.
+     * @throws IOException Error accessing the Lucene index
+     */
+    @Override
+    public double getMaxDefaultScore(RetrievalModel r) throws IOException {
+        if (!(r instanceof RetrievalModelIndri)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double[] w = this.getNormalizedWeights();
+        double logScore = 0.0;
+        for (int i = 0; i < this.args.size(); i++) {
+            logScore += w[i] * Math.log(((QrySop) this.args.get(i)).getMaxDefaultScore(r));
+        }
+        return Math.exp(logScore);
+    }
+
+    /**
+     * Initialize the query operator and its arguments.  If the Indri
+     * model enables MaxScore, compute the arguments' bounds.
+     *
+     * @param r     A retrieval model that guides initialization
+     * @param index The index to evaluate the query against
+     * @throws IOException Error accessing the Lucene index.
+     */
+    @Override
+    public void initialize(RetrievalModel r, IndexContext index) throws IOException {
+        super.initialize(r, index);
+
+        this.maxScore = null;
+        this.scoreThreshold = Double.NEGATIVE_INFINITY;
+
+        if (r instanceof RetrievalModelIndri && ((RetrievalModelIndri) r).getMaxScore()) {
+            this.maxScore = IndriMaxScore.create(this.args, this.getNormalizedWeights(), r);
+        }
+    }
+
+    /**
+     * Compile to an Indri scorer.  An operator that prunes caches the
+     * scores that it computes while matching, so it scores itself.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     * @return The scorer.
+     */
+    @Override
+    public QryScorer compile(RetrievalModel r) {
+        if (!(r instanceof RetrievalModelIndri) || this.maxScore != null) {
+            return super.compile(r);
+        }
+        return QryScorer.indriAnd(this, r, QryScorer.compileArgs(this, r), this.getNormalizedWeights());
+    }
+
+    /**
+     * Give a copy its own scratch space.
+     */
+    @Override
+    protected void copyIteratorState() {
+        if (this.maxScore != null) {
+            this.maxScore = this.maxScore.copy();
+        }
+    }
+
+    /**
+     * Remember the lowest score that can enter the result list.
+     *
+     * @param threshold The lowest score that can enter the result list.
+     */
+    @Override
+    public void setScoreThreshold(double threshold) {
+        this.scoreThreshold = threshold;
     }
 
 }
\ No newline at end of file
@@ -6,13 +6,14 @@ import java.io.*;
 public class QrySopWSum extends QrySopW {
 
     /**
-     * Indicates whether the query has a match.
+     * Find the first match at or after target.
      *
-     * @param r The retrieval model that determines what is a match
-     * @return True if the query matches, otherwise false.
+     * @param r      The retrieval model that determines what is a match
+     * @param target An internal document id.
+     * @return The internal id of the match, or NO_MORE_DOCS.
      */
-    public boolean docIteratorHasMatch(RetrievalModel r) {
-        return this.docIteratorHasMatchMin(r);
+    protected int docIteratorSeek(RetrievalModel r, int target) {
+        return this.docIteratorSeekMin(r, target);
     }
 
     /**
@@ -40,13 +41,13 @@ public class QrySopWSum extends QrySopW {
     private double getScoreIndri(RetrievalModel r) throws IOException {
         double score = 0.0;
         int docid = this.docIteratorGetMatch();
+        double[] w = this.getNormalizedWeights();
         for (int i = 0; i < this.args.size(); i++) {
             QrySop q = (QrySop) this.args.get(i);
-            double weight = this.weights.get(i);
             if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docid) {
-                score += (q.getScore(r)) * weight / this.weightSum;
+                score += q.getScore(r) * w[i];
             } else {
-                score += (q.getDefaultScore(r, docid)) * weight / this.weightSum;
+                score += q.getDefaultScore(r, docid) * w[i];
             }
         }
         return score;
@@ -62,10 +63,10 @@ public class QrySopWSum extends QrySopW {
     @Override
     public double getDefaultScore(RetrievalModel r, int docid) throws IOException {
         double score = 0.0;
+        double[] w = this.getNormalizedWeights();
         for (int i = 0; i < this.args.size(); i++) {
             Qry q = this.args.get(i);
-            double weight = this.weights.get(i);
-            score += (((QrySop) q).getDefaultScore(r, docid)) * weight / this.weightSum;
+            score += ((QrySop) q).getDefaultScore(r, docid) * w[i];
         }
         return score;
     }
@@ -0,0 +1,213 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A harness that compares ways of evaluating the queries in a query
+ *  file.  A subclass supplies the timed variants (two, unless it says
+ *  otherwise); the harness reads the queries, parses the command line,
+ *  and runs the rounds.  In each round, every query is parsed,
+ *  initialized, and evaluated with each variant.  The variants must
+ *  find the same number of documents with the same sum of scores; the
+ *  harness checks that, and reports the time per round of each.  Query
+ *  parsing and initialization are not timed.  The first half of the
+ *  rounds are warm-up.
+ *  <p>
+ *  The command line is:
+ *  </p>
+ *  <pre>
+ *    java -cp ".:lucene-6.6.0/*" CLASS -index INDEX_PATH -queries QUERY_FILE
+ *        [-model bm25|indri] [-rounds N] [-streaming true|false]
+ *  </pre>
+ */
+public abstract class QueryBenchmark {
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get the number of variants.
+   *  @return The number of variants.
+   */
+  protected int variants () {
+    return 2;
+  }
+
+  /**
+   *  Get the name of a variant, for the report.
+   *  @param variant 0 to variants () - 1.
+   *  @return The variant's name.
+   */
+  protected abstract String name (int variant);
+
+  /**
+   *  Evaluate an initialized query with one variant.
+   *  @param q An initialized query.  Its iterators are consumed.
+   *  @param model The retrieval model.
+   *  @param variant 0 to variants () - 1.
+   *  @param result Receives the number of matches and the sum of
+   *    their scores.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected abstract void evaluate (QrySop q, RetrievalModel model,
+                                    int variant, double[] result)
+    throws IOException;
+
+  /**
+   *  Get anything else that a subclass reports after each round.
+   *  @return Text to append to the round's report, or "".
+   */
+  protected String report () {
+    return "";
+  }
+
+  /**
+   *  Read the queries in a query file (qid:query, one per line), and
+   *  wrap each in the retrieval model's default operator.
+   *  @param path The query file.
+   *  @param model The retrieval model.
+   *  @return The query strings.
+   *  @throws IOException Error reading the file.
+   */
+  private static List<String> readQueries (String path, RetrievalModel model)
+    throws IOException {
+
+    List<String> queries = new ArrayList<String> ();
+
+    try (BufferedReader input = new BufferedReader (new FileReader (path))) {
+      String line;
+
+      while ((line = input.readLine ()) != null) {
+        int d = line.indexOf (':');
+
+        if (d < 0) {
+          continue;
+        }
+
+        queries.add (model.defaultQrySopName () + "(" + line.substring (d + 1) + ")");
+      }
+    }
+
+    return queries;
+  }
+
+  /**
+   *  Evaluate every query with one variant.
+   *  @param queries The query strings.
+   *  @param model The retrieval model.
+   *  @param variant 0 to variants () - 1.
+   *  @param result Receives the number of matches and the sum of
+   *    their scores, for each query.
+   *  @return The evaluation time in nanoseconds.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private long round (List<String> queries, RetrievalModel model,
+                      int variant, double[][] result)
+    throws IOException {
+
+    long time = 0;
+
+    for (int i = 0; i < queries.size (); i++) {
+      Qry q = QryParser.getQuery (queries.get (i));
+
+      result[i][0] = 0;
+      result[i][1] = 0;
+
+      if ((q == null) || (q.args.size () == 0)) {
+        continue;
+      }
+
+      q.initialize (model);
+
+      long start = System.nanoTime ();
+
+      this.evaluate ((QrySop) q, model, variant, result[i]);
+      time += System.nanoTime () - start;
+    }
+
+    return time;
+  }
+
+  /**
+   *  Run the benchmark.
+   *  @param args The command line arguments; see the class comment.
+   *  @throws Exception Error accessing the index or the query file.
+   */
+  protected void run (String[] args) throws Exception {
+
+    String usage =
+      "Usage:  java " + this.getClass ().getName () +
+      " -index INDEX_PATH -queries QUERY_FILE\n" +
+      "        [-model bm25|indri] [-rounds N] [-streaming true|false]\n";
+
+    String indexPath = null;
+    String queryPath = null;
+    String modelName = "bm25";
+    int rounds = 10;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[i+1];
+      } else if ("-queries".equals (args[i])) {
+        queryPath = args[i+1];
+      } else if ("-model".equals (args[i])) {
+        modelName = args[i+1].toLowerCase ();
+      } else if ("-rounds".equals (args[i])) {
+        rounds = Integer.parseInt (args[i+1]);
+      } else if ("-streaming".equals (args[i])) {
+        QryIopTerm.setStreaming (Boolean.parseBoolean (args[i+1]));
+      } else {
+        System.err.println (usage);
+        System.exit (1);
+      }
+    }
+
+    RetrievalModel model = null;
+
+    if ("bm25".equals (modelName)) {
+      model = new RetrievalModelBM25 (0.75, 1.2, 0);
+    } else if ("indri".equals (modelName)) {
+      model = new RetrievalModelIndri (2500, 0.4);
+    }
+
+    if ((indexPath == null) || (queryPath == null) || (model == null) ||
+        (args.length % 2 != 0) || (rounds < 2)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    Idx.open (indexPath);
+    Idx.preloadFieldLengths ();
+
+    List<String> queries = readQueries (queryPath, model);
+    int n = this.variants ();
+    double[][][] results = new double[n][queries.size ()][2];
+    long[] times = new long[n];
+
+    for (int round = 0; round < rounds; round++) {
+      for (int v = 0; v < n; v++) {
+        times[v] = this.round (queries, model, v, results[v]);
+      }
+
+      for (int v = 1; v < n; v++) {
+        for (int i = 0; i < queries.size (); i++) {
+          if (! Arrays.equals (results[0][i], results[v][i])) {
+            throw new IllegalStateException (this.name (0) + " and " + this.name (v) +
+                                             " disagree on query " + queries.get (i));
+          }
+        }
+      }
+
+      if (round >= rounds / 2) {
+        StringBuilder line = new StringBuilder ();
+
+        line.append (queries.size ()).append (" queries:  ");
+
+        for (int v = 0; v < n; v++) {
+          line.append ((v > 0) ? ", " : "").append (this.name (v));
+          line.append (String.format (" %.1f ms", times[v] / 1e6));
+        }
+
+        System.out.println (line.append (this.report ()));
+      }
+    }
+  }
+}
@@ -490,12 +490,12 @@ public class RetrievalAlgorithmLetor {
                 if (d < 0) throw new IllegalArgumentException("missing ':' in query line");
                 String qid = line.substring(0, d);
                 String query = line.substring(d + 1);
-                ScoreList r = QryEval.processQuery(query, modelBM25, qid);
+                ScoreList r = QryEval.processQuery(query, modelBM25, qid, 100);
                 r.sort();
                 ArrayList<DocumentData> docs = new ArrayList<>();
                 int num = Math.min(100, r.size());
                 for (int i = 0; i < num; i++) {
-                    String externalID = Idx.getExternalDocid(r.getDocid(i));
+                    String externalID = r.getExternalDocid(i);
                     docs.add(new DocumentData(externalID, "0"));
                 }
                 ArrayList<DocumentData> dd = calculateFeatures(query, docs);
@@ -2,6 +2,14 @@ public class RetrievalModelBM25 extends RetrievalModel {
     private double b;
     private double k1;
     private double k3;
+    // evaluate #SUM with MaxScore dynamic pruning
+    private boolean maxScore = false;
+    // block-max bounds that let MaxScore skip whole blocks, or null
+    private BlockMaxIndex blockMaxIndex = null;
+    // impact-ordered postings for score-at-a-time evaluation, or null
+    private ImpactIndex impactIndex = null;
+    // the most postings that score-at-a-time evaluation reads per query; 0 is unlimited
+    private long postingsBudget = 0;
 
     public RetrievalModelBM25(double b, double k1, double k3) {
         this.b = b;
@@ -36,5 +44,37 @@ public class RetrievalModelBM25 extends RetrievalModel {
     public double getK3() {
         return this.k3;
     }
+
+    public void setMaxScore(boolean maxScore) {
+        this.maxScore = maxScore;
+    }
+
+    public boolean getMaxScore() {
+        return this.maxScore;
+    }
+
+    public void setBlockMaxIndex(BlockMaxIndex blockMaxIndex) {
+        this.blockMaxIndex = blockMaxIndex;
+    }
+
+    public BlockMaxIndex getBlockMaxIndex() {
+        return this.blockMaxIndex;
+    }
+
+    public void setImpactIndex(ImpactIndex impactIndex) {
+        this.impactIndex = impactIndex;
+    }
+
+    public ImpactIndex getImpactIndex() {
+        return this.impactIndex;
+    }
+
+    public void setPostingsBudget(long postingsBudget) {
+        this.postingsBudget = postingsBudget;
+    }
+
+    public long getPostingsBudget() {
+        return this.postingsBudget;
+    }
 }
 
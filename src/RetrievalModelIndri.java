@@ -1,6 +1,8 @@
 public class RetrievalModelIndri extends RetrievalModel {
     private int mu;
     private double lambda;
+    // evaluate #AND and #WAND with MaxScore dynamic pruning
+    private boolean maxScore = false;
 
     //default operator for Indri is #AND
     @Override
@@ -28,4 +30,12 @@ public class RetrievalModelIndri extends RetrievalModel {
     public double getLambda() {
         return this.lambda;
     }
+
+    public void setMaxScore(boolean maxScore) {
+        this.maxScore = maxScore;
+    }
+
+    public boolean getMaxScore() {
+        return this.maxScore;
+    }
 }
\ No newline at end of file
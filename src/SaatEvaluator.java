@@ -0,0 +1,334 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A score-at-a-time (SAAT) evaluator for flat BM25 #SUM queries over
+ *  terms, which reads an ImpactIndex instead of the Lucene index.  The
+ *  impact segments of all of the query's terms are processed in
+ *  descending impact order, and each segment's impact is added to the
+ *  accumulators of its documents, so the postings that matter most are
+ *  read first.
+ *  <p>
+ *  Evaluation stops early when the top n documents can't change:  no
+ *  document can gain more than the sum of the terms' next impacts, so
+ *  once the n'th best score is more than that sum ahead of the
+ *  (n+1)'th, the rest of the postings are only consulted to complete
+ *  the scores of the top n documents.  Evaluation also stops when the
+ *  model's postings budget (see RetrievalModelBM25) is used up, which
+ *  bounds the cost of every query; the top n are then ranked by the
+ *  partial scores.
+ *  </p><p>
+ *  Scores are sums of quantized impacts times the index's scale, so
+ *  they approximate the BM25 scores of exhaustive evaluation.
+ *  </p>
+ */
+public class SaatEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The calling thread's accumulators.
+   */
+  private static final ThreadLocal<Accumulators> ACCUMULATORS =
+    new ThreadLocal<Accumulators> () {
+      protected Accumulators initialValue () {
+        return new Accumulators ();
+      }
+    };
+
+  /**
+   *  A dense array of integer scores, the documents that have been
+   *  seen, and a histogram of the scores of the seen documents.
+   *  Between queries, every score, bit and count is 0.
+   */
+  private static class Accumulators {
+    int[] scores = new int[0];
+    long[] seen = new long[0];
+    int[] touched = new int[1024];
+    int[] histogram = new int[0];
+
+    void ensureCapacity (int maxDoc, int maxScore) {
+      if (this.scores.length < maxDoc) {
+        this.scores = new int[maxDoc];
+        this.seen = new long[(maxDoc + 63) >>> 6];
+      }
+
+      if (this.histogram.length <= maxScore) {
+        this.histogram = new int[maxScore + 1];
+      }
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Indicates whether a query can be evaluated score-at-a-time:  the
+   *  model is BM25 with an impact index that was built from the index,
+   *  and the query is a #SUM of #SCORE operators over terms in fields
+   *  that the impact index covers.
+   *  @param q A query, which need not be initialized.
+   *  @param r The retrieval model.
+   *  @param index The index that the query is evaluated against.
+   *  @return True if SAAT can evaluate the query.
+   */
+  public static boolean supports (Qry q, RetrievalModel r, IndexContext index) {
+
+    if (! (r instanceof RetrievalModelBM25) || ! (q instanceof QrySopSum)) {
+      return false;
+    }
+
+    RetrievalModelBM25 bm25 = (RetrievalModelBM25) r;
+    ImpactIndex impacts = bm25.getImpactIndex ();
+
+    if ((impacts == null) || (q.args.size () == 0) ||
+        ! impacts.isValidFor (bm25.getK1 (), bm25.getB (), index)) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore) ||
+          ! (q_i.args.get (0) instanceof QryIopTerm) ||
+          ! impacts.hasField (((QryIopTerm) q_i.args.get (0)).getField ())) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate a supported query score-at-a-time.
+   *  @param q A supported query (see supports).
+   *  @param r The retrieval model.
+   *  @param index The index that the impact index was built from.
+   *  @param numResults The number of documents to keep.
+   *  @param result The list that the top documents are added to.
+   *  @throws IOException Error reading the impact index.
+   */
+  public static void evaluate (Qry q, RetrievalModelBM25 r, IndexContext index,
+                               int numResults, ScoreList result)
+    throws IOException {
+
+    ImpactIndex impactIndex = r.getImpactIndex ();
+    int n = q.args.size ();
+    Accumulators acc = ACCUMULATORS.get ();
+
+    acc.ensureCapacity (index.getReader ().maxDoc (),
+                        n * impactIndex.getMaxImpact ());
+
+    try {
+      SaatEvaluator.accumulate (q, r, impactIndex, numResults, result, acc);
+    } catch (IOException | RuntimeException ex) {
+      ACCUMULATORS.remove ();           // Don't reuse partial scores
+      throw ex;
+    }
+  }
+
+  /**
+   *  The body of evaluate.
+   *  @param q A supported query.
+   *  @param r The retrieval model.
+   *  @param impactIndex The impact index.
+   *  @param numResults The number of documents to keep.
+   *  @param result The list that the top documents are added to.
+   *  @param acc The calling thread's accumulators.
+   *  @throws IOException Error reading the impact index.
+   */
+  private static void accumulate (Qry q, RetrievalModelBM25 r,
+                                  ImpactIndex impactIndex, int numResults,
+                                  ScoreList result, Accumulators acc)
+    throws IOException {
+
+    int n = q.args.size ();
+    ImpactIndex.Impacts[] lists = new ImpactIndex.Impacts[n];
+    int numSegments = 0;
+
+    for (int i = 0; i < n; i++) {
+      QryIopTerm t = (QryIopTerm) q.args.get (i).args.get (0);
+      lists[i] = impactIndex.getImpacts (t.getTerm (), t.getField ());
+
+      if (lists[i] != null) {
+        numSegments += lists[i].impacts.length;
+      }
+    }
+
+    //  Order every segment of every list by descending impact.  next[i]
+    //  is argument i's first unprocessed segment, and remaining is the
+    //  sum of their impacts, i.e., the most that any document can still
+    //  gain.
+
+    long[] order = new long[numSegments];
+    int[] next = new int[n];
+    int remaining = 0;
+    int s = 0;
+
+    for (int i = 0; i < n; i++) {
+      if (lists[i] != null) {
+        for (int k = 0; k < lists[i].impacts.length; k++) {
+          order[s++] = ((long) (Integer.MAX_VALUE - lists[i].impacts[k]) << 32) |
+                       ((long) i << 16) | k;
+        }
+        remaining += lists[i].impacts[0];
+      }
+    }
+
+    Arrays.sort (order);
+
+    int[] scores = acc.scores;
+    long[] seen = acc.seen;
+    int[] histogram = acc.histogram;
+    int numTouched = 0;
+    long budget = r.getPostingsBudget ();
+    long postings = 0;
+    boolean bounded = (numResults != Integer.MAX_VALUE);
+    int kthScore = -1;
+
+    for (s = 0; s < numSegments; s++) {
+      int i = (int) ((order[s] >>> 16) & 0xFFFF);
+      int k = (int) (order[s] & 0xFFFF);
+      ImpactIndex.Impacts list = lists[i];
+      int impact = list.impacts[k];
+      int end = list.starts[k + 1];
+
+      if ((budget > 0) && (postings + (end - list.starts[k]) > budget)) {
+        end = (int) (list.starts[k] + (budget - postings));
+      }
+
+      for (int p = list.starts[k]; p < end; p++) {
+        int docid = list.docids[p];
+        int w = docid >>> 6;
+        long bit = 1L << docid;
+
+        if ((seen[w] & bit) == 0) {
+          seen[w] |= bit;
+
+          if (numTouched == acc.touched.length) {
+            acc.touched = Arrays.copyOf (acc.touched, 2 * numTouched);
+          }
+
+          acc.touched[numTouched++] = docid;
+        } else {
+          histogram[scores[docid]] --;
+        }
+
+        scores[docid] += impact;
+        histogram[scores[docid]] ++;
+      }
+
+      postings += end - list.starts[k];
+
+      if (end < list.starts[k + 1]) {
+        break;                          // The budget is used up
+      }
+
+      remaining -= impact;
+      next[i] = k + 1;
+
+      if (next[i] < list.impacts.length) {
+        remaining += list.impacts[next[i]];
+      }
+
+      //  Stop when the n'th score is out of reach of the (n+1)'th
+      //  score, including the 0 of any document that hasn't been seen.
+
+      if (bounded && (remaining > 0) && (numTouched >= numResults)) {
+        kthScore = SaatEvaluator.safeKthScore (histogram, numResults,
+                                               numTouched, remaining);
+
+        if (kthScore >= 0) {
+          break;
+        }
+      }
+    }
+
+    //  Report the documents.  After an early stop, only the top n are
+    //  reported, and their scores are completed from the postings that
+    //  weren't processed.
+
+    double scale = impactIndex.getScale ();
+
+    for (int j = 0; j < numTouched; j++) {
+      int docid = acc.touched[j];
+
+      if (kthScore >= 0) {
+        if (scores[docid] >= kthScore) {
+          int score = scores[docid];
+
+          for (int i = 0; i < n; i++) {
+            score += SaatEvaluator.findImpact (lists[i], next[i], docid);
+          }
+
+          result.add (docid, score * scale);
+        }
+      } else {
+        result.add (docid, scores[docid] * scale);
+      }
+
+      histogram[scores[docid]] = 0;
+      scores[docid] = 0;
+      seen[docid >>> 6] = 0;
+    }
+  }
+
+  /**
+   *  Find the n'th best score, if it is more than remaining ahead of
+   *  the (n+1)'th best score.
+   *  @param histogram The number of seen documents with each score.
+   *  @param n The number of documents to keep.
+   *  @param numSeen The number of seen documents.
+   *  @param remaining The most that any document can still gain.
+   *  @return The n'th best score, or -1 if the top n may still change.
+   */
+  private static int safeKthScore (int[] histogram, int n, int numSeen,
+                                   int remaining) {
+
+    int count = 0;
+    int kth = -1;
+
+    for (int score = histogram.length - 1; score >= 0; score--) {
+      if (histogram[score] == 0) {
+        continue;
+      }
+
+      if (kth < 0) {
+        count += histogram[score];
+
+        if (count > n) {
+          return -1;                    // Ties at the n'th score
+        } else if (count == n) {
+          kth = score;
+        }
+      } else {
+        return (kth > score + remaining) ? kth : -1;
+      }
+    }
+
+    //  Every seen document is in the top n; the (n+1)'th has score 0.
+
+    return ((kth >= 0) && (kth > remaining)) ? kth : -1;
+  }
+
+  /**
+   *  Find a document's impact in the unprocessed segments of a list.
+   *  @param list The list, or null.
+   *  @param first The list's first unprocessed segment.
+   *  @param docid The document.
+   *  @return The impact, or 0 if the document isn't in those segments.
+   */
+  private static int findImpact (ImpactIndex.Impacts list, int first,
+                                 int docid) {
+
+    if (list == null) {
+      return 0;
+    }
+
+    for (int k = first; k < list.impacts.length; k++) {
+      if (Arrays.binarySearch (list.docids, list.starts[k],
+                               list.starts[k + 1], docid) >= 0) {
+        return list.impacts[k];
+      }
+    }
+
+    return 0;
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ *  Scoring kernels for blocks of postings:  the BM25 tf saturation and
+ *  the Dirichlet-smoothed Indri probability, computed from arrays of
+ *  tfs and field lengths with per-term constants.  Block-at-a-time
+ *  evaluation (see QrySopScore.getScores) calls them.
+ *  <p>
+ *  This class is the scalar implementation.  VectorScoreKernels, in
+ *  the vector directory, implements the same kernels with the
+ *  incubating Java Vector API.  It is only built by "make vector" and
+ *  only runs when the JVM is started with --add-modules
+ *  jdk.incubator.vector, so it is loaded by name; if it isn't
+ *  available, the scalar kernels are used.  Both return exactly the
+ *  scores that QrySopScore.getScore does (see QryScorer).
+ *  </p>
+ */
+public class ScoreKernels {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String VECTOR_CLASS = "VectorScoreKernels";
+
+  /**
+   *  The kernels in use.
+   */
+  private static ScoreKernels kernels = new ScoreKernels ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get the kernels in use.
+   *  @return The kernels.
+   */
+  public static ScoreKernels get () {
+    return ScoreKernels.kernels;
+  }
+
+  /**
+   *  Choose vector or scalar kernels.
+   *  @param vector True to use the vector kernels, if they are available.
+   *  @return True if the vector kernels are in use.
+   */
+  public static boolean setVectorized (boolean vector) {
+
+    ScoreKernels k = new ScoreKernels ();
+
+    if (vector) {
+      try {
+        k = (ScoreKernels) Class.forName (VECTOR_CLASS).getDeclaredConstructor ().newInstance ();
+      } catch (ReflectiveOperationException | LinkageError ex) {
+        //  Not built, or the module isn't available.  Use scalar kernels.
+      }
+    }
+
+    ScoreKernels.kernels = k;
+    return (k.getClass () != ScoreKernels.class);
+  }
+
+  /**
+   *  BM25 term scores:
+   *  idf * tf / (tf + k_1 * (oneMinusB + b * (docLen / avgLength))).
+   *  @param idf The term's idf.
+   *  @param k1 BM25's k_1.
+   *  @param b BM25's b.
+   *  @param oneMinusB 1 - b.
+   *  @param avgLength The average length of the field.
+   *  @param tfs The term frequencies.
+   *  @param lengths The field lengths.
+   *  @param n The number of postings.
+   *  @param scores Receives the n scores.
+   */
+  public void bm25 (double idf, double k1, double b, double oneMinusB,
+                    double avgLength, int[] tfs, int[] lengths, int n,
+                    double[] scores) {
+    bm25 (idf, k1, b, oneMinusB, avgLength, tfs, lengths, 0, n, scores);
+  }
+
+  /**
+   *  Indri term scores:
+   *  oneMinusLambda * (tf + muMle) / (docLen + mu) + lambdaMle.
+   *  @param oneMinusLambda 1 - lambda.
+   *  @param muMle mu times the term's collection probability.
+   *  @param mu Indri's mu.
+   *  @param lambdaMle lambda times the term's collection probability.
+   *  @param tfs The term frequencies.
+   *  @param lengths The field lengths.
+   *  @param n The number of postings.
+   *  @param scores Receives the n scores.
+   */
+  public void indri (double oneMinusLambda, double muMle, double mu,
+                     double lambdaMle, int[] tfs, int[] lengths, int n,
+                     double[] scores) {
+    indri (oneMinusLambda, muMle, mu, lambdaMle, tfs, lengths, 0, n, scores);
+  }
+
+  /**
+   *  The scalar BM25 kernel over postings [from, to).
+   */
+  protected static void bm25 (double idf, double k1, double b,
+                              double oneMinusB, double avgLength,
+                              int[] tfs, int[] lengths, int from, int to,
+                              double[] scores) {
+    for (int i = from; i < to; i++) {
+      double tf = tfs[i];
+      double docLen = lengths[i];
+      double tfWeight = tf / (tf + k1 * (oneMinusB + b * (docLen / avgLength)));
+      scores[i] = idf * tfWeight;
+    }
+  }
+
+  /**
+   *  The scalar Indri kernel over postings [from, to).
+   */
+  protected static void indri (double oneMinusLambda, double muMle,
+                               double mu, double lambdaMle, int[] tfs,
+                               int[] lengths, int from, int to,
+                               double[] scores) {
+    for (int i = from; i < to; i++) {
+      double docLength = lengths[i];
+      double tf = tfs[i];
+      scores[i] = oneMinusLambda * (tf + muMle) / (docLength + mu) + lambdaMle;
+    }
+  }
+}
@@ -7,6 +7,20 @@ import java.util.*;
 /**
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
+ *  <p>
+ *  A score list may be bounded to the best n entries.  A bounded list
+ *  collects entries in a min-heap whose root is the worst entry kept
+ *  so far, so a document that can't make the top n is rejected with a
+ *  single comparison and the full list is never sorted.  The heap is
+ *  turned into an ordinary sorted list the first time the list is
+ *  read (or sorted), so all entries should be added before then.
+ *  </p><p>
+ *  External document ids are read from the index only when they are
+ *  needed, i.e., to break a score tie or when getExternalDocid is
+ *  called, so most entries never look them up.  If the index has an
+ *  external id table (see Idx.loadExternalIdTable), ties are broken
+ *  by comparing external id ordinals instead.
+ *  </p>
  */
 public class ScoreList {
 
@@ -15,34 +29,138 @@ public class ScoreList {
 
   private class ScoreListEntry {
     private int docid;
-    private String externalId;
+    private String externalId = null;
+    private int externalIdOrdinal;
     private double score;
 
     private ScoreListEntry(int internalDocid, double score) {
       this.docid = internalDocid;
       this.score = score;
+      this.externalIdOrdinal = index.getExternalDocidOrdinal (this.docid);
+    }
 
-      try {
-	this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-	ex.printStackTrace();
+    private String getExternalId() {
+      if (this.externalId == null) {
+        try {
+	  this.externalId = index.getExternalDocid (this.docid);
+        }
+        catch (IOException ex){
+	  ex.printStackTrace();
+        }
       }
+      return this.externalId;
     }
   }
 
+  /**
+   *  The index that the document ids belong to.
+   */
+  private final IndexContext index;
+
   /**
    *  A list of document ids and scores. 
    */
   private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
 
+  /**
+   *  The maximum number of entries that a bounded list keeps.
+   */
+  private int capacity = Integer.MAX_VALUE;
+
+  /**
+   *  The best entries of a bounded list, with the worst at the root.
+   *  It is null for unbounded lists.
+   */
+  private PriorityQueue<ScoreListEntry> topK = null;
+
+  /**
+   *  Constructor.  An unbounded score list for the current index.
+   */
+  public ScoreList() {
+    this (Idx.getContext ());
+  }
+
+  /**
+   *  Constructor.  An unbounded score list.
+   *  @param index The index that the document ids belong to.
+   */
+  public ScoreList(IndexContext index) {
+    this.index = index;
+  }
+
+  /**
+   *  Constructor.  A score list for the current index that keeps only
+   *  the best entries.
+   *  @param capacity The number of entries to keep.
+   */
+  public ScoreList(int capacity) {
+    this (Idx.getContext (), capacity);
+  }
+
+  /**
+   *  Constructor.  A score list that keeps only the best entries.
+   *  @param index The index that the document ids belong to.
+   *  @param capacity The number of entries to keep.
+   */
+  public ScoreList(IndexContext index, int capacity) {
+    this.index = index;
+    this.capacity = Math.max (capacity, 0);
+    this.topK = new PriorityQueue<ScoreListEntry>(
+      Math.min (this.capacity, 1024) + 1,
+      Collections.reverseOrder (new ScoreListComparator()));
+  }
+
   /**
    *  Append a document score to a score list.
    *  @param docid An internal document id.
    *  @param score The document's score.
    */
   public void add(int docid, double score) {
-    scores.add(new ScoreListEntry(docid, score));
+
+    if (this.topK == null) {
+      scores.add(new ScoreListEntry(docid, score));
+      return;
+    }
+
+    //  A bounded list.  Documents that score below the worst kept
+    //  entry are rejected without creating an entry.
+
+    if (this.topK.size() < this.capacity) {
+      this.topK.add (new ScoreListEntry(docid, score));
+    } else if ((this.capacity > 0) && (score >= this.topK.peek().score)) {
+      ScoreListEntry e = new ScoreListEntry(docid, score);
+
+      if (this.topK.comparator().compare (e, this.topK.peek()) > 0) {
+        this.topK.poll ();
+        this.topK.add (e);
+      }
+    }
+  }
+
+  /**
+   *  Get the lowest score that can still enter a bounded list that is
+   *  full; documents that score less will be rejected.
+   *  @return The score of the worst entry kept, or negative infinity
+   *    if the list isn't bounded or isn't full yet.
+   */
+  public double getThreshold() {
+    if ((this.topK == null) || (this.topK.size() < this.capacity) ||
+        this.topK.isEmpty()) {
+      return Double.NEGATIVE_INFINITY;
+    }
+
+    return this.topK.peek().score;
+  }
+
+  /**
+   *  Turn the heap of a bounded list into an ordinary sorted list.
+   */
+  private void drainTopK() {
+    if ((this.topK != null) && (! this.topK.isEmpty())) {
+      this.scores.addAll (this.topK);
+      this.topK.clear ();
+      Collections.sort(this.scores, new ScoreListComparator());
+    }
   }
 
   /**
@@ -51,15 +169,27 @@ public class ScoreList {
    *  @return The internal document id.
    */
   public int getDocid(int n) {
+    this.drainTopK ();
     return this.scores.get(n).docid;
   }
 
+  /**
+   *  Get the external docid of the n'th entry.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   */
+  public String getExternalDocid(int n) {
+    this.drainTopK ();
+    return this.scores.get(n).getExternalId();
+  }
+
   /**
    *  Get the score of the n'th entry.
    *  @param n The index of the requested document score.
    *  @return The document's score.
    */
   public double getDocidScore(int n) {
+    this.drainTopK ();
     return this.scores.get(n).score;
   }
 
@@ -69,6 +199,7 @@ public class ScoreList {
    *  @param score The new score.
    */
   public void setDocidScore(int n, double score) {
+    this.drainTopK ();
     this.scores.get(n).score = score;
   }
 
@@ -77,6 +208,7 @@ public class ScoreList {
    *  @return The size of the posting list.
    */
   public int size() {
+    this.drainTopK ();
     return this.scores.size();
   }
 
@@ -91,7 +223,10 @@ public class ScoreList {
         if (s1.score < s2.score) {
           return 1;
         } else if (s1.score == s2.score) {
-          return s1.externalId.compareTo(s2.externalId);
+          if ((s1.externalIdOrdinal >= 0) && (s2.externalIdOrdinal >= 0)) {
+            return Integer.compare(s1.externalIdOrdinal, s2.externalIdOrdinal);
+          }
+          return s1.getExternalId().compareTo(s2.getExternalId());
         } else {
           return -1;
         }
@@ -102,6 +237,7 @@ public class ScoreList {
    *  Sort the list by score and external document id.
    */
   public void sort () {
+    this.drainTopK ();
     Collections.sort(this.scores, new ScoreListComparator());
   }
   
@@ -111,6 +247,7 @@ public class ScoreList {
    * @param num Number of results to keep.
    */
   public void truncate(int num) {
+    this.drainTopK ();
     List<ScoreListEntry> truncated = new ArrayList<ScoreListEntry>(this.scores.subList(0,
         Math.min(num, scores.size())));
     this.scores.clear();
@@ -0,0 +1,269 @@
+import java.io.*;
+
+/**
+ *  A term-at-a-time (TAAT) evaluator for flat queries:  a BM25 #SUM
+ *  or an Indri #AND whose arguments are all #SCORE operators over
+ *  inverted lists.  Each argument's inverted list is read from start
+ *  to finish, and its scores are accumulated in a dense array that is
+ *  indexed by docid, so there is none of the per-document recursion of
+ *  document-at-a-time (DAAT) evaluation.
+ *  <p>
+ *  Scores are exactly the same as DAAT scores (see QryScorer).  For
+ *  #AND, an argument that doesn't match a document adds its default
+ *  score, in its place in argument order.
+ *  </p><p>
+ *  The accumulators belong to the calling thread and are reused, so a
+ *  query costs time proportional to its postings and to maxDoc/64,
+ *  not maxDoc.
+ *  </p>
+ */
+public class TaatEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  Queries with more arguments than this are left to DAAT.
+   */
+  private static final int MAX_ARGS = 8;
+
+  /**
+   *  When DAAT can prune (MaxScore with a bounded result list),
+   *  TAAT is only used if the query's postings add up to less than
+   *  this fraction of the documents; longer lists are better skipped
+   *  than read.
+   */
+  private static final double MAX_PRUNABLE_POSTINGS = 0.25;
+
+  /**
+   *  "auto" chooses TAAT or DAAT for each query; "true" uses TAAT
+   *  for every query that it supports; "false" never uses TAAT.
+   */
+  private static String mode = "auto";
+
+  /**
+   *  The calling thread's accumulators.
+   */
+  private static final ThreadLocal<Accumulators> ACCUMULATORS =
+    new ThreadLocal<Accumulators> () {
+      protected Accumulators initialValue () {
+        return new Accumulators ();
+      }
+    };
+
+  /**
+   *  A dense score array and bitsets of the documents that have been
+   *  seen by the query and matched by the current argument.  Between
+   *  queries, every score is 0 and every bit is clear.
+   */
+  private static class Accumulators {
+    double[] scores = new double[0];
+    long[] seen = new long[0];
+    long[] matched = new long[0];
+
+    void ensureCapacity (int maxDoc) {
+      if (this.scores.length < maxDoc) {
+        this.scores = new double[maxDoc];
+        this.seen = new long[(maxDoc + 63) >>> 6];
+        this.matched = new long[(maxDoc + 63) >>> 6];
+      }
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Set whether queries are evaluated term-at-a-time.
+   *  @param m "auto", "true", or "false".
+   *  @throws IllegalArgumentException Unknown mode.
+   */
+  public static void setMode (String m) throws IllegalArgumentException {
+
+    m = m.toLowerCase ();
+
+    if (! (m.equals ("auto") || m.equals ("true") || m.equals ("false"))) {
+      throw new IllegalArgumentException ("Unknown taat mode: " + m);
+    }
+
+    TaatEvaluator.mode = m;
+  }
+
+  /**
+   *  Indicates whether a query has a shape that TAAT supports.
+   *  @param q An initialized query.
+   *  @param r The retrieval model.
+   *  @return True if TAAT can evaluate the query.
+   */
+  public static boolean supports (Qry q, RetrievalModel r) {
+
+    if (! (((q instanceof QrySopSum) && (r instanceof RetrievalModelBM25)) ||
+           ((q instanceof QrySopAnd) && (r instanceof RetrievalModelIndri)))) {
+      return false;
+    }
+
+    if ((q.args.size () == 0) || (q.args.size () > MAX_ARGS)) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Decide whether to evaluate a query term-at-a-time.  TAAT reads
+   *  every posting once with little work per posting, while DAAT pays
+   *  for a recursive merge at every document but can skip documents
+   *  when it prunes.  So TAAT is chosen for supported queries unless
+   *  DAAT can prune and the query's postings are long.
+   *  @param q An initialized query.
+   *  @param r The retrieval model.
+   *  @param numResults The number of documents to keep.
+   *  @return True if the query should be evaluated term-at-a-time.
+   */
+  public static boolean useTaat (Qry q, RetrievalModel r, int numResults) {
+
+    if (TaatEvaluator.mode.equals ("false") || ! supports (q, r)) {
+      return false;
+    }
+
+    if (TaatEvaluator.mode.equals ("true")) {
+      return true;
+    }
+
+    boolean prunable =
+      (((r instanceof RetrievalModelBM25) &&
+        ((RetrievalModelBM25) r).getMaxScore ()) ||
+       ((r instanceof RetrievalModelIndri) &&
+        ((RetrievalModelIndri) r).getMaxScore ())) &&
+      (numResults != Integer.MAX_VALUE);
+
+    if (! prunable) {
+      return true;
+    }
+
+    long postings = 0;
+
+    for (Qry q_i : q.args) {
+      postings += q_i.getArg (0).getDf ();
+    }
+
+    return (postings < MAX_PRUNABLE_POSTINGS * q.index.getReader ().maxDoc ());
+  }
+
+  /**
+   *  Evaluate a supported query term-at-a-time.
+   *  @param q An initialized query (see supports).  Its iterators are
+   *    consumed.
+   *  @param r The retrieval model.
+   *  @param result The list that the matching documents are added to,
+   *    in docid order.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel r, ScoreList result)
+    throws IOException {
+
+    Accumulators acc = ACCUMULATORS.get ();
+
+    acc.ensureCapacity (q.index.getReader ().maxDoc ());
+
+    try {
+      TaatEvaluator.accumulate (q, r, result, acc);
+    } catch (IOException | RuntimeException ex) {
+      ACCUMULATORS.remove ();           // Don't reuse partial scores
+      throw ex;
+    }
+  }
+
+  /**
+   *  The body of evaluate.
+   *  @param q An initialized query.
+   *  @param r The retrieval model.
+   *  @param result The list that the matching documents are added to.
+   *  @param acc The calling thread's accumulators.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void accumulate (Qry q, RetrievalModel r, ScoreList result,
+                                  Accumulators acc) throws IOException {
+
+    boolean and = (q instanceof QrySopAnd);
+    int n = q.args.size ();
+    double a = 1.0 / n;
+
+    double[] scores = acc.scores;
+    long[] seen = acc.seen;
+    long[] matched = acc.matched;
+    int words = (q.index.getReader ().maxDoc () + 63) >>> 6;
+
+    for (int i = 0; i < n; i++) {
+      QrySopScore q_i = (QrySopScore) q.args.get (i);
+
+      while (q_i.docIteratorHasMatch (r)) {
+        int docid = q_i.docIteratorGetMatch ();
+        int w = docid >>> 6;
+        long bit = 1L << docid;
+
+        if (and) {
+
+          //  A document that is new to the query starts with the
+          //  default scores of the arguments before this one.
+
+          if ((seen[w] & bit) == 0) {
+            double s = 0.0;
+
+            for (int j = 0; j < i; j++) {
+              s += a * ((QrySop) q.args.get (j)).getLogDefaultScore (r, docid);
+            }
+
+            scores[docid] = s;
+          }
+
+          scores[docid] += a * q_i.getLogScore (r);
+          matched[w] |= bit;
+        } else {
+          scores[docid] += q_i.getScore (r);
+        }
+
+        seen[w] |= bit;
+        q_i.docIteratorAdvancePast (docid);
+      }
+
+      //  Documents that were seen but not matched by this argument
+      //  get its default score.
+
+      if (and) {
+        for (int w = 0; w < words; w++) {
+          long unmatched = seen[w] & ~matched[w];
+
+          while (unmatched != 0) {
+            int docid = (w << 6) + Long.numberOfTrailingZeros (unmatched);
+            scores[docid] += a * q_i.getLogDefaultScore (r, docid);
+            unmatched &= unmatched - 1;
+          }
+
+          matched[w] = 0;
+        }
+      }
+    }
+
+    //  Report the documents in docid order, and reset the accumulators.
+
+    for (int w = 0; w < words; w++) {
+      long bits = seen[w];
+
+      while (bits != 0) {
+        int docid = (w << 6) + Long.numberOfTrailingZeros (bits);
+        double score = and ? Math.exp (scores[docid]) : scores[docid];
+
+        result.add (docid, score);
+        scores[docid] = 0;
+        bits &= bits - 1;
+      }
+
+      seen[w] = 0;
+    }
+  }
+}
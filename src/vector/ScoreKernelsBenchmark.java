@@ -0,0 +1,194 @@
+import java.util.*;
+
+/**
+ *  Compares the scalar ScoreKernels with VectorScoreKernels.  Build it
+ *  with "make vector", and run it with "make vector-bench" or:
+ *  <pre>
+ *    java --add-modules jdk.incubator.vector -cp ".:lucene-6.6.0/*" ScoreKernelsBenchmark
+ *  </pre>
+ *  <p>
+ *  The postings are synthetic blocks of BLOCK_SIZE postings, as
+ *  BlockEvaluator reads them:  tfs are geometric (1 + floor of an
+ *  exponential with mean 1.5) and field lengths are log-normal
+ *  (exp (5.5 + 0.8 N(0,1)), plus the tf).  Every block is first scored
+ *  by both implementations and the scores are checked to be exactly
+ *  the same.  Then each kernel is timed over all of the blocks for
+ *  several rounds; the first half of the rounds are warm-up, and the
+ *  rest are reported in nanoseconds per posting.
+ *  </p>
+ */
+public class ScoreKernelsBenchmark {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int BLOCK_SIZE = 128;
+
+  static String usage =
+    "Usage:  java --add-modules jdk.incubator.vector ScoreKernelsBenchmark" +
+    " [-blocks N] [-reps N] [-rounds N] [-seed N]\n";
+
+  /**
+   *  Term and model constants.  BM25:  idf, k_1, b, 1 - b, average
+   *  length.  Indri:  1 - lambda, mu * p_MLE, mu, lambda * p_MLE.
+   */
+  private static final double IDF = 3.2;
+  private static final double K1 = 1.2;
+  private static final double B = 0.75;
+  private static final double AVG_LENGTH = 310.0;
+  private static final double LAMBDA = 0.4;
+  private static final double MU = 2500;
+  private static final double P_MLE = 1e-5;
+
+  /**
+   *  Keeps the JIT from discarding the kernels' results.
+   */
+  private static double sink = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Score every block with two implementations and check that the
+   *  scores are the same.
+   */
+  private static void check (ScoreKernels k, ScoreKernels s, int[][] tfs,
+                             int[][] lengths) {
+
+    double[] out = new double[BLOCK_SIZE];
+    double[] ref = new double[BLOCK_SIZE];
+
+    for (int j = 0; j < tfs.length; j++) {
+      k.bm25 (IDF, K1, B, 1 - B, AVG_LENGTH, tfs[j], lengths[j], BLOCK_SIZE, out);
+      s.bm25 (IDF, K1, B, 1 - B, AVG_LENGTH, tfs[j], lengths[j], BLOCK_SIZE, ref);
+
+      if (! Arrays.equals (out, ref)) {
+        throw new IllegalStateException ("BM25 scores differ in block " + j);
+      }
+
+      k.indri (1 - LAMBDA, MU * P_MLE, MU, LAMBDA * P_MLE, tfs[j], lengths[j],
+               BLOCK_SIZE, out);
+      s.indri (1 - LAMBDA, MU * P_MLE, MU, LAMBDA * P_MLE, tfs[j], lengths[j],
+               BLOCK_SIZE, ref);
+
+      if (! Arrays.equals (out, ref)) {
+        throw new IllegalStateException ("Indri scores differ in block " + j);
+      }
+    }
+  }
+
+  /**
+   *  Time the BM25 kernel.
+   *  @return Nanoseconds per posting.
+   */
+  private static double timeBm25 (ScoreKernels k, int[][] tfs,
+                                  int[][] lengths, int reps) {
+
+    double[] out = new double[BLOCK_SIZE];
+    long start = System.nanoTime ();
+
+    for (int rep = 0; rep < reps; rep++) {
+      for (int j = 0; j < tfs.length; j++) {
+        k.bm25 (IDF, K1, B, 1 - B, AVG_LENGTH, tfs[j], lengths[j], BLOCK_SIZE, out);
+        sink += out[j % BLOCK_SIZE];
+      }
+    }
+
+    return (double) (System.nanoTime () - start) / ((long) reps * tfs.length * BLOCK_SIZE);
+  }
+
+  /**
+   *  Time the Indri kernel.
+   *  @return Nanoseconds per posting.
+   */
+  private static double timeIndri (ScoreKernels k, int[][] tfs,
+                                   int[][] lengths, int reps) {
+
+    double[] out = new double[BLOCK_SIZE];
+    long start = System.nanoTime ();
+
+    for (int rep = 0; rep < reps; rep++) {
+      for (int j = 0; j < tfs.length; j++) {
+        k.indri (1 - LAMBDA, MU * P_MLE, MU, LAMBDA * P_MLE, tfs[j], lengths[j],
+                 BLOCK_SIZE, out);
+        sink += out[j % BLOCK_SIZE];
+      }
+    }
+
+    return (double) (System.nanoTime () - start) / ((long) reps * tfs.length * BLOCK_SIZE);
+  }
+
+  /**
+   *  @param args The command line arguments; see the usage message.
+   *  @throws Exception Error loading the vector kernels.
+   */
+  public static void main (String[] args) throws Exception {
+
+    int blocks = 4096;
+    int reps = 50;
+    int rounds = 8;
+    long seed = 1;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-blocks".equals (args[i])) {
+        blocks = Integer.parseInt (args[i+1]);
+      } else if ("-reps".equals (args[i])) {
+        reps = Integer.parseInt (args[i+1]);
+      } else if ("-rounds".equals (args[i])) {
+        rounds = Integer.parseInt (args[i+1]);
+      } else if ("-seed".equals (args[i])) {
+        seed = Long.parseLong (args[i+1]);
+      } else {
+        System.err.println (usage);
+        System.exit (1);
+      }
+    }
+
+    if ((args.length % 2 != 0) || (blocks < 1) || (reps < 1) || (rounds < 2)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    ScoreKernels scalar = new ScoreKernels ();
+
+    if (! ScoreKernels.setVectorized (true)) {
+      System.err.println ("Vector kernels are not available; build them with " +
+                          "\"make vector\" and run with --add-modules jdk.incubator.vector.");
+      System.exit (1);
+    }
+
+    ScoreKernels vector = ScoreKernels.get ();
+
+    //  Synthetic postings.
+
+    Random random = new Random (seed);
+    int[][] tfs = new int[blocks][BLOCK_SIZE];
+    int[][] lengths = new int[blocks][BLOCK_SIZE];
+
+    for (int j = 0; j < blocks; j++) {
+      for (int i = 0; i < BLOCK_SIZE; i++) {
+        tfs[j][i] = 1 + (int) Math.floor (-Math.log (random.nextDouble ()) * 1.5);
+        lengths[j][i] = (int) Math.exp (5.5 + 0.8 * random.nextGaussian ()) + tfs[j][i];
+      }
+    }
+
+    check (vector, scalar, tfs, lengths);
+    System.out.println ("Scores are identical for " + blocks + " blocks of " +
+                        BLOCK_SIZE + " postings.");
+
+    for (int round = 0; round < rounds; round++) {
+      double scalarBm25 = timeBm25 (scalar, tfs, lengths, reps);
+      double vectorBm25 = timeBm25 (vector, tfs, lengths, reps);
+      double scalarIndri = timeIndri (scalar, tfs, lengths, reps);
+      double vectorIndri = timeIndri (vector, tfs, lengths, reps);
+
+      if (round >= rounds / 2) {
+        System.out.printf ("BM25:  scalar %.2f ns/posting, vector %.2f ns/posting;  " +
+                           "Indri:  scalar %.2f ns/posting, vector %.2f ns/posting%n",
+                           scalarBm25, vectorBm25, scalarIndri, vectorIndri);
+      }
+    }
+
+    if (sink == 42) {
+      System.out.println ();
+    }
+  }
+}
@@ -0,0 +1,70 @@
+import jdk.incubator.vector.*;
+
+/**
+ *  ScoreKernels on the incubating Java Vector API.  Build it with
+ *  "make vector", and run with --add-modules jdk.incubator.vector and
+ *  vectorScoring=true.
+ *  <p>
+ *  Scores are exactly the same as the scalar kernel's (see QryScorer).
+ *  Each kernel converts a vector of tfs and a vector of lengths to
+ *  doubles and evaluates the formula lane by lane, one posting per
+ *  lane; no operation combines lanes, so each lane does the scalar
+ *  kernel's operations in its order.  The postings that don't fill a
+ *  vector are scored by the scalar kernel.
+ *  </p>
+ */
+public class VectorScoreKernels extends ScoreKernels {
+
+  private static final VectorSpecies<Double> D = DoubleVector.SPECIES_PREFERRED;
+
+  /**
+   *  Ints with as many lanes as D.
+   */
+  private static final VectorSpecies<Integer> I =
+    VectorSpecies.of (int.class, VectorShape.forBitSize (D.vectorBitSize () / 2));
+
+  @Override
+  public void bm25 (double idf, double k1, double b, double oneMinusB,
+                    double avgLength, int[] tfs, int[] lengths, int n,
+                    double[] scores) {
+
+    int bound = D.loopBound (n);
+    int i = 0;
+
+    for (; i < bound; i += D.length ()) {
+      DoubleVector tf = toDoubles (tfs, i);
+      DoubleVector docLen = toDoubles (lengths, i);
+      DoubleVector norm =
+        docLen.div (avgLength).mul (b).add (oneMinusB).mul (k1).add (tf);
+      tf.div (norm).mul (idf).intoArray (scores, i);
+    }
+
+    bm25 (idf, k1, b, oneMinusB, avgLength, tfs, lengths, i, n, scores);
+  }
+
+  @Override
+  public void indri (double oneMinusLambda, double muMle, double mu,
+                     double lambdaMle, int[] tfs, int[] lengths, int n,
+                     double[] scores) {
+
+    int bound = D.loopBound (n);
+    int i = 0;
+
+    for (; i < bound; i += D.length ()) {
+      DoubleVector tf = toDoubles (tfs, i);
+      DoubleVector docLength = toDoubles (lengths, i);
+      tf.add (muMle).mul (oneMinusLambda).div (docLength.add (mu))
+        .add (lambdaMle).intoArray (scores, i);
+    }
+
+    indri (oneMinusLambda, muMle, mu, lambdaMle, tfs, lengths, i, n, scores);
+  }
+
+  /**
+   *  Load D.length () ints and convert them to doubles.
+   */
+  private static DoubleVector toDoubles (int[] a, int i) {
+    return (DoubleVector) IntVector.fromArray (I, a, i)
+      .convertShape (VectorOperators.I2D, D, 0);
+  }
+}